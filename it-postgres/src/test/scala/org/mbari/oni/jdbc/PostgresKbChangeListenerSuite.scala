@@ -0,0 +1,56 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.jdbc
+
+import org.mbari.oni.config.DatabaseConfig
+import org.mbari.oni.jpa.EntityManagerFactories.*
+import org.mbari.oni.jpa.PostgresEntityManagerFactoryProvider
+
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit}
+
+class PostgresKbChangeListenerSuite extends munit.FunSuite:
+
+    private val container            = PostgresEntityManagerFactoryProvider.container
+    private val entityManagerFactory = PostgresEntityManagerFactoryProvider.entityManagerFactory
+
+    private val databaseConfig = DatabaseConfig(
+        "WARNING",
+        container.getDriverClassName,
+        container.getJdbcUrl,
+        container.getUsername,
+        container.getPassword
+    )
+
+    test("notifies of committed changes") {
+        val versions = new LinkedBlockingQueue[Long]()
+        val listener = KbChangeListener(databaseConfig)(versions.put).start()
+        try
+            // Called once on connecting, with the current version
+            val initial = versions.poll(10, TimeUnit.SECONDS)
+            assert(initial > 0L)
+
+            // Statement level triggers fire even when no rows change
+            val updated = entityManagerFactory.transaction(entityManager =>
+                entityManager.createNativeQuery("UPDATE concept SET id = id WHERE 1 = 0").executeUpdate()
+            )
+            assert(updated.isRight)
+            val next    = versions.poll(10, TimeUnit.SECONDS)
+            assert(next > initial)
+            assert(listener.isListening)
+        finally listener.close()
+        assert(!listener.isListening)
+    }
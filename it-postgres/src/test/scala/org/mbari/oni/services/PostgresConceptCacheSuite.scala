@@ -0,0 +1,67 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.services
+
+import org.mbari.oni.PostgresMixin
+import org.mbari.oni.jdbc.{FastPhylogenyService, KbChange}
+import org.mbari.oni.jpa.DataInitializer
+import org.mbari.oni.jpa.EntityManagerFactories.*
+
+class PostgresConceptCacheSuite extends DataInitializer with PostgresMixin:
+
+    private lazy val fastPhylogenyService = FastPhylogenyService(entityManagerFactory)
+
+    private def kbVersion(): Long = fastPhylogenyService.findKbVersion().fold(e => fail(e.toString), identity)
+
+    /** Changes the KB behind the cache's back, as another server would */
+    private def execute(sql: String): Unit =
+        assert(entityManagerFactory.transaction(_.createNativeQuery(sql).executeUpdate()).isRight)
+
+    test("findKbChanges") {
+        val root    = init(3, 0)
+        val child   = root.getChildConcepts.iterator().next()
+        val before  = kbVersion()
+        execute(s"UPDATE concept SET aphiaid = 13579 WHERE id = ${child.getId}")
+        execute(s"UPDATE conceptname SET author = 'someone' WHERE conceptid_fk = ${root.getId}")
+        val after   = kbVersion()
+        val changes = fastPhylogenyService.findKbChanges(before, after).fold(e => fail(e.toString), identity)
+        // A change to a concept row also touches its parent
+        val expected = Set(KbChange(Some(child.getId.toLong), true), KbChange(Some(root.getId.toLong), true))
+        assertEquals(changes.toSet, expected)
+        assertEquals(fastPhylogenyService.findKbChanges(after, after).map(_.isEmpty), Right(true))
+    }
+
+    test("kbChanged evicts only the changed concepts") {
+        val root       = init(3, 0)
+        val grandChild = root.getChildConcepts.iterator().next().getChildConcepts.iterator().next()
+        val names      = Seq(root, grandChild).map(_.getPrimaryConceptName.getName)
+        val cache      = ConceptCache(
+            ConceptService(entityManagerFactory),
+            ConceptNameService(entityManagerFactory),
+            Some(fastPhylogenyService)
+        )
+        cache.kbChanged(kbVersion())
+        val before     = names.map(name => cache.findTaggedByName(name).fold(e => fail(e.toString), identity))
+
+        execute(s"UPDATE concept SET aphiaid = 13579 WHERE id = ${grandChild.getId}")
+        cache.kbChanged(kbVersion())
+
+        val after = names.map(name => cache.findTaggedByName(name).fold(e => fail(e.toString), identity))
+        assert(after.head eq before.head)
+        assertEquals(after(1).metadata.aphiaId, Some(13579L))
+        assert(after(1).kbVersion > before(1).kbVersion)
+    }
@@ -20,6 +20,7 @@ import org.mbari.oni.domain.{ConceptCreate, ConceptMetadata, ConceptUpdate, Rank
 import org.mbari.oni.etc.circe.CirceCodecs.{*, given}
 import org.mbari.oni.etc.jdk.Strings
 import org.mbari.oni.etc.jwt.JwtService
+import org.mbari.oni.jdbc.FastPhylogenyService
 import org.mbari.oni.jpa.DataInitializer
 import org.mbari.oni.jpa.entities.TestEntityFactory
 import org.mbari.oni.services.{RankValidator, UserAuthMixin}
@@ -113,6 +114,36 @@ trait ConceptEndpointsSuite extends EndpointsSuite with DataInitializer with Use
         )
     }
 
+    test("findByName (with If-None-Match)") {
+        val root  = init(2, 0)
+        val child = root.getChildConcepts.iterator().next()
+        val name  = child.getPrimaryConceptName.getName
+
+        var etag = ""
+        runGet(
+            endpoints.findByNameImpl,
+            s"http://test.com/v1/concept/${name}",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                etag = response.header("ETag").getOrElse(fail("No ETag header"))
+        )
+        runGet(
+            endpoints.findByNameImpl,
+            s"http://test.com/v1/concept/${name}",
+            response =>
+                assertEquals(response.code, StatusCode.NotModified)
+                assertEquals(response.header("ETag"), Some(etag))
+            ,
+            headers = Map("If-None-Match" -> etag)
+        )
+        runGet(
+            endpoints.findByNameImpl,
+            s"http://test.com/v1/concept/${name}",
+            response => assertEquals(response.code, StatusCode.Ok),
+            headers = Map("If-None-Match" -> "\"not-the-etag\"")
+        )
+    }
+
     test("findByName (with escaped characters)") {
         val root = init(2, 0)
         val name = "SomeConceptWith/Slash"
@@ -165,6 +196,31 @@ trait ConceptEndpointsSuite extends EndpointsSuite with DataInitializer with Use
         )
     }
 
+    test("findByNameContaining and findNamesContaining (indexed)") {
+        val root    = init(2, 0)
+        val child   = root.getChildConcepts.iterator().next()
+        val name    = child.getPrimaryConceptName.getName
+        val glob    = name.substring(2, 8).toUpperCase
+        val indexed = ConceptEndpoints(entityManagerFactory, Some(FastPhylogenyService(entityManagerFactory)))
+
+        runGet(
+            indexed.findByNameContainingImpl,
+            s"http://test.com/v1/concept/find/${glob}",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                val concepts = checkResponse[Seq[ConceptMetadata]](response.body)
+                assertEquals(concepts.map(_.name), Seq(name))
+        )
+
+        runGet(
+            indexed.findNamesContainingImpl,
+            s"http://test.com/v1/concept/find/${glob}/names",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                assertEquals(checkResponse[Seq[String]](response.body), Seq(name))
+        )
+    }
+
     test("findRoot") {
         val root = init(2, 0)
         val name = root.getPrimaryConceptName.getName
@@ -260,6 +316,41 @@ trait ConceptEndpointsSuite extends EndpointsSuite with DataInitializer with Use
 
     }
 
+    test("update evicts only the changed concept, its parent and its children from the cache") {
+        val attempt = testWithUserAuth(
+            user =>
+                // A chain: root, then one concept per level
+                val root    = init(5, 0)
+                val chain   = Iterator.iterate(root)(_.getChildConcepts.iterator().next()).take(5).toSeq
+                val names   = chain.map(_.getPrimaryConceptName.getName)
+                val indexed = ConceptEndpoints(entityManagerFactory, Some(FastPhylogenyService(entityManagerFactory)))
+                val cache   = indexed.conceptCache
+                val before  = names.map(name => cache.findTaggedByName(name).fold(e => fail(e.toString), identity))
+
+                runPut(
+                    indexed.updateEndpointImpl,
+                    s"http://test.com/v1/concept/${names(2)}",
+                    ConceptUpdate(aphiaId = Some(24680L)).stringify,
+                    response => assertEquals(response.code, StatusCode.Ok),
+                    jwt = jwtService.login(user.username, password, user.toEntity)
+                )
+
+                val after = names.map(name => cache.findTaggedByName(name).fold(e => fail(e.toString), identity))
+                assertEquals(after(2).metadata.aphiaId, Some(24680L))
+                // The same instances, so still cached
+                assert(after(0) eq before(0))
+                assert(after(1) ne before(1))
+                assert(after(3) ne before(3))
+                assert(after(4) eq before(4))
+            ,
+            password
+        )
+
+        attempt match
+            case Right(_)    => ()
+            case Left(error) => fail(error.toString)
+    }
+
     test("delete") {
 
         val attempt = testWithUserAuth(
@@ -19,6 +19,7 @@ package org.mbari.oni.endpoints
 import org.mbari.oni.domain.{ConceptNameCreate, ConceptNameTypes, ConceptNameUpdate, Page, RawConcept}
 import org.mbari.oni.etc.circe.CirceCodecs.{*, given}
 import org.mbari.oni.etc.jwt.JwtService
+import org.mbari.oni.jdbc.FastPhylogenyService
 import org.mbari.oni.jpa.DataInitializer
 import org.mbari.oni.services.UserAuthMixin
 import sttp.model.StatusCode
@@ -91,6 +92,35 @@ trait ConceptNameEndpointsSuite extends EndpointsSuite with DataInitializer with
             case Left(error) => fail(error.toString)
     }
 
+    test("addConceptName makes the name findable through the concept cache") {
+        val root             = init(3, 3)
+        val name             = RawConcept.from(root).primaryName
+        val dto              =
+            ConceptNameCreate(name = name, newName = "newName", nameType = ConceptNameTypes.ALTERNATE.getType)
+        val conceptEndpoints = ConceptEndpoints(entityManagerFactory, Some(FastPhylogenyService(entityManagerFactory)))
+        val cache            = conceptEndpoints.conceptCache
+        val cached           = ConceptNameEndpoints(entityManagerFactory, Some(cache))
+
+        // Remembered as a miss
+        assert(cache.findByName(dto.newName).isLeft)
+
+        val attempt = testWithUserAuth(
+            user =>
+                runPost(
+                    cached.addConceptNameEndpointImpl,
+                    "http://test.com/v1/names",
+                    dto.stringify,
+                    response => assertEquals(response.code, StatusCode.Ok),
+                    jwt = jwtService.login(user.username, password, user.toEntity)
+                ),
+            password
+        )
+
+        attempt match
+            case Right(_)    => assertEquals(cache.findByName(dto.newName).map(_.name), Right(name))
+            case Left(error) => fail(error.toString)
+    }
+
     test("updateConceptName") {
         val root    = init(3, 3)
         assert(root != null)
@@ -102,15 +102,17 @@ trait EndpointsSuite extends munit.FunSuite:
         ep: ServerEndpoint[Any, Future],
         uri: String,
         assertions: Response[Either[String, String]] => Unit,
-        jwt: Option[String] = None
+        jwt: Option[String] = None,
+        headers: Map[String, String] = Map.empty
     ): Unit =
         val backendStub = newBackendStub(ep)
         val u           = uri"$uri"
         val request     = jwt match
-            case None         => basicRequest.get(u)
+            case None         => basicRequest.get(u).headers(headers)
             case Some(bearer) =>
                 basicRequest
                     .get(u)
+                    .headers(headers)
                     .auth
                     .bearer(bearer)
         log.atDebug.log("--REQUEST: " + request)
@@ -16,11 +16,13 @@
 
 package org.mbari.oni.endpoints
 
-import org.mbari.oni.domain.SerdeConcept
-import org.mbari.oni.etc.circe.CirceCodecs.given
+import org.mbari.oni.domain.{NameSuggestion, NameValidation, SerdeConcept}
+import org.mbari.oni.etc.circe.CirceCodecs.{*, given}
 import org.mbari.oni.jpa.DataInitializer
 import sttp.model.StatusCode
 
+import scala.jdk.CollectionConverters.*
+
 trait PhylogenyEndpointsSuite extends EndpointsSuite with DataInitializer:
 
     lazy val endpoints = new PhylogenyEndpoints(entityManagerFactory)
@@ -99,3 +101,270 @@ trait PhylogenyEndpointsSuite extends EndpointsSuite with DataInitializer:
                 assert(a.isDefined)
         )
     }
+
+    test("isdescendant") {
+        val root     = init(4, 1)
+        val rootName = root.getPrimaryConceptName.getName
+        val child    = root.getChildConcepts.iterator().next()
+        val name     = child.getPrimaryConceptName.getName
+        runGet(
+            endpoints.isDescendantEndpointImpl,
+            s"http://test.com/v1/phylogeny/isdescendant/$name/$rootName",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                assert(checkResponse[Boolean](response.body))
+        )
+        runGet(
+            endpoints.isDescendantEndpointImpl,
+            s"http://test.com/v1/phylogeny/isdescendant/$rootName/$name",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                assert(!checkResponse[Boolean](response.body))
+        )
+        runGet(
+            endpoints.isDescendantEndpointImpl,
+            s"http://test.com/v1/phylogeny/isdescendant/not-a-real-concept/$rootName",
+            response => assertEquals(response.code, StatusCode.NotFound)
+        )
+    }
+
+    test("taxa (with rank)") {
+        val root = init(4, 3)
+        val name = root.getPrimaryConceptName.getName
+        val all  = endpoints.service.findTaxa(name).getOrElse(Nil)
+        val rank = all.flatMap(_.rank).headOption.getOrElse(fail("Expected the test data to have ranks"))
+        runGet(
+            endpoints.taxaEndpointImpl,
+            s"http://test.com/v1/phylogeny/taxa/$name?rank=$rank",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                val taxa = checkResponse[Seq[SerdeConcept]](response.body)
+                assertEquals(taxa.map(_.name), all.filter(_.rank.contains(rank)).map(_.name))
+        )
+        runGet(
+            endpoints.taxaEndpointImpl,
+            s"http://test.com/v1/phylogeny/taxa/$name?rank=not-a-rank",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                assertEquals(checkResponse[Seq[SerdeConcept]](response.body), Nil)
+        )
+    }
+
+    test("lca") {
+        val root     = init(3, 2)
+        val rootName = root.getPrimaryConceptName.getName
+        val children = root.getChildConcepts.asScala.map(_.getPrimaryConceptName.getName).toSeq
+        val query    = children.map(name => s"name=$name").mkString("&")
+        runGet(
+            endpoints.lowestCommonAncestorEndpointImpl,
+            s"http://test.com/v1/phylogeny/lca?$query",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                assertEquals(checkResponse[SerdeConcept](response.body).name, rootName)
+        )
+        runGet(
+            endpoints.lowestCommonAncestorEndpointImpl,
+            s"http://test.com/v1/phylogeny/lca?$query&name=not-a-real-concept",
+            response => assertEquals(response.code, StatusCode.NotFound)
+        )
+        runGet(
+            endpoints.lowestCommonAncestorEndpointImpl,
+            "http://test.com/v1/phylogeny/lca",
+            response => assertEquals(response.code, StatusCode.BadRequest)
+        )
+    }
+
+    test("path") {
+        val root     = init(3, 2)
+        val rootName = root.getPrimaryConceptName.getName
+        val children = root.getChildConcepts.asScala.map(_.getPrimaryConceptName.getName).toSeq
+        val a        = children.head
+        val b        = children.last
+        runGet(
+            endpoints.pathEndpointImpl,
+            s"http://test.com/v1/phylogeny/path/$a/$b",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                assertEquals(checkResponse[Seq[SerdeConcept]](response.body).map(_.name), Seq(a, rootName, b))
+        )
+        runGet(
+            endpoints.pathEndpointImpl,
+            s"http://test.com/v1/phylogeny/path/$a/not-a-real-concept",
+            response => assertEquals(response.code, StatusCode.NotFound)
+        )
+    }
+
+    test("down (with If-None-Match)") {
+        val root = init(3, 2)
+        val name = root.getPrimaryConceptName.getName
+
+        var etag = ""
+        runGet(
+            endpoints.downEndpointImpl,
+            s"http://test.com/v1/phylogeny/down/$name",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                etag = response.header("ETag").getOrElse(fail("No ETag header"))
+        )
+        runGet(
+            endpoints.downEndpointImpl,
+            s"http://test.com/v1/phylogeny/down/$name",
+            response =>
+                assertEquals(response.code, StatusCode.NotModified)
+                assertEquals(response.header("ETag"), Some(etag))
+            ,
+            headers = Map("If-None-Match" -> etag)
+        )
+        runGet(
+            endpoints.downEndpointImpl,
+            s"http://test.com/v1/phylogeny/down/$name",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                assertEquals(checkResponse[SerdeConcept](response.body).name, name)
+            ,
+            headers = Map("If-None-Match" -> "\"not-the-etag\"")
+        )
+    }
+
+    test("down (with depth and maxNodes)") {
+        val root = init(4, 2)
+        val name = root.getPrimaryConceptName.getName
+        runGet(
+            endpoints.downEndpointImpl,
+            s"http://test.com/v1/phylogeny/down/$name?depth=1",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                val concept = checkResponse[SerdeConcept](response.body)
+                assertEquals(concept.children.map(_.size), Some(root.getChildConcepts.size()))
+                assert(concept.children.get.forall(_.children.isEmpty))
+        )
+        runGet(
+            endpoints.downEndpointImpl,
+            s"http://test.com/v1/phylogeny/down/$name?maxNodes=1",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                assertEquals(checkResponse[SerdeConcept](response.body).children, None)
+        )
+        runGet(
+            endpoints.downEndpointImpl,
+            s"http://test.com/v1/phylogeny/down/$name?depth=-1",
+            response => assertEquals(response.code, StatusCode.BadRequest)
+        )
+    }
+
+    test("taxa (with depth)") {
+        val root = init(4, 2)
+        val name = root.getPrimaryConceptName.getName
+        runGet(
+            endpoints.taxaEndpointImpl,
+            s"http://test.com/v1/phylogeny/taxa/$name?depth=1",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                val taxa = checkResponse[Seq[SerdeConcept]](response.body)
+                assertEquals(taxa.size, root.getChildConcepts.size() + 1)
+        )
+    }
+
+    test("up (batch)") {
+        val root     = init(3, 2)
+        val rootName = root.getPrimaryConceptName.getName
+        val names    = root.getChildConcepts.asScala.map(_.getPrimaryConceptName.getName).toSeq
+        runPost(
+            endpoints.upBatchEndpointImpl,
+            "http://test.com/v1/phylogeny/up",
+            (names :+ "not-a-real-concept").stringify,
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                val branches = checkResponse[Map[String, SerdeConcept]](response.body)
+                assertEquals(branches.keySet, names.toSet)
+                assert(branches.values.forall(_.name == rootName))
+        )
+    }
+
+    test("down (batch)") {
+        val root = init(3, 2)
+        val name = root.getPrimaryConceptName.getName
+        runPost(
+            endpoints.downBatchEndpointImpl,
+            "http://test.com/v1/phylogeny/down?depth=0",
+            Seq(name).stringify,
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                val trees = checkResponse[Map[String, SerdeConcept]](response.body)
+                assertEquals(trees.get(name).map(_.children), Some(None))
+        )
+    }
+
+    test("autocomplete") {
+        val root   = init(3, 2)
+        val name   = root.getPrimaryConceptName.getName
+        val prefix = name.take(name.length - 1).toUpperCase
+        runGet(
+            endpoints.autocompleteEndpointImpl,
+            s"http://test.com/v1/phylogeny/autocomplete/$prefix?limit=5",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                val names = checkResponse[Seq[String]](response.body)
+                assert(names.contains(name))
+                assert(names.size <= 5)
+        )
+        runGet(
+            endpoints.autocompleteEndpointImpl,
+            s"http://test.com/v1/phylogeny/autocomplete/$prefix?limit=0",
+            response => assertEquals(response.code, StatusCode.BadRequest)
+        )
+    }
+
+    test("suggest") {
+        val root       = init(3, 2)
+        val name       = root.getPrimaryConceptName.getName
+        val misspelled = (name.dropRight(1) + (if name.last == 'q' then 'z' else 'q')).toUpperCase
+        runGet(
+            endpoints.suggestEndpointImpl,
+            s"http://test.com/v1/phylogeny/suggest/$misspelled?limit=100&maxDistance=1",
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                val suggestions = checkResponse[Seq[NameSuggestion]](response.body)
+                assert(suggestions.contains(NameSuggestion(name, name, 1)))
+                assert(suggestions.forall(_.distance <= 1))
+        )
+        runGet(
+            endpoints.suggestEndpointImpl,
+            s"http://test.com/v1/phylogeny/suggest/$misspelled?maxDistance=4",
+            response => assertEquals(response.code, StatusCode.BadRequest)
+        )
+    }
+
+    test("validate") {
+        val root  = init(3, 2)
+        val child = root.getChildConcepts.iterator().next()
+        val names = Seq("not-a-real-concept", root.getPrimaryConceptName.getName, child.getPrimaryConceptName.getName)
+        runPost(
+            endpoints.validateEndpointImpl,
+            "http://test.com/v1/phylogeny/validate",
+            names.stringify,
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                val results = checkResponse[Seq[NameValidation]](response.body)
+                assertEquals(results.map(_.name), names)
+                assertEquals(results.map(_.exists), Seq(false, true, true))
+                assertEquals(results(2).primaryName, Some(child.getPrimaryConceptName.getName))
+                assertEquals(results.head.primaryName, None)
+        )
+    }
+
+    test("siblings (batch)") {
+        val root  = init(3, 3)
+        val names = root.getChildConcepts.asScala.map(_.getPrimaryConceptName.getName).toSeq
+        runPost(
+            endpoints.siblingsBatchEndpointImpl,
+            "http://test.com/v1/phylogeny/siblings",
+            names.stringify,
+            response =>
+                assertEquals(response.code, StatusCode.Ok)
+                val siblings = checkResponse[Map[String, Seq[SerdeConcept]]](response.body)
+                assertEquals(siblings.keySet, names.toSet)
+                assert(siblings.values.forall(_.map(_.name).toSet == names.toSet))
+        )
+    }
+
@@ -20,7 +20,9 @@ import org.mbari.oni.domain.Concept
 import org.mbari.oni.etc.circe.CirceCodecs.{*, given}
 import org.mbari.oni.etc.jdk.Loggers.given
 import org.mbari.oni.jpa.DataInitializer
+import org.mbari.oni.jpa.EntityManagerFactories.*
 
+import java.sql.Timestamp
 import scala.annotation.tailrec
 import scala.jdk.CollectionConverters.*
 
@@ -28,10 +30,69 @@ trait FastPhylogenyServiceSuite extends DataInitializer:
 
     lazy val fastPhylogenyService = new FastPhylogenyService(entityManagerFactory)
 
-    test("findLastUpdate") {
-        val root       = init(4, 2)
-        val lastUpdate = fastPhylogenyService.findLastUpdate()
-        assert(lastUpdate != null)
+    test("findKbVersion") {
+        val root   = Concept.from(init(3, 2))
+        fastPhylogenyService.refresh()
+        val before = fastPhylogenyService.findKbVersion()
+        assert(before.isRight)
+        assertEquals(fastPhylogenyService.status().kbVersion, before.toOption.get)
+
+        // Deletes leave no row behind to carry a newer last_updated_time, but they still bump the version
+        val leaf  = root.children.head.children.head
+        assert(conceptService.deleteByName(leaf.name).isRight)
+        val after = fastPhylogenyService.findKbVersion()
+        assert(after.toOption.get > before.toOption.get)
+
+        fastPhylogenyService.refresh()
+        assertEquals(fastPhylogenyService.status().kbVersion, after.toOption.get)
+        assertEquals(fastPhylogenyService.findUp(leaf.name), None)
+    }
+
+    test("refresh picks up a change stamped before the newest one it has seen") {
+        val root       = Concept.from(init(3, 2))
+        fastPhylogenyService.refresh()
+        val lastUpdate = fastPhylogenyService.status().lastUpdate
+
+        // As if its transaction wrote the row before the newest one the cache has seen, but committed after it
+        val leaf    = root.children.head.children.head
+        val renamed = s"${leaf.name}-renamed"
+        val updated = entityManagerFactory.transaction(entityManager =>
+            entityManager
+                .createNativeQuery(
+                    "UPDATE ConceptName SET CONCEPTNAME = ?1, LAST_UPDATED_TIME = ?2 WHERE CONCEPTNAME = ?3"
+                )
+                .setParameter(1, renamed)
+                .setParameter(2, Timestamp.from(lastUpdate.minusSeconds(1)))
+                .setParameter(3, leaf.name)
+                .executeUpdate()
+        )
+        assertEquals(updated, Right(1))
+
+        fastPhylogenyService.refresh()
+        assert(fastPhylogenyService.findUp(renamed).isDefined)
+        assertEquals(fastPhylogenyService.findUp(leaf.name), None)
+    }
+
+    test("isUnknownName") {
+        val root      = Concept.from(init(2, 2))
+        fastPhylogenyService.refresh()
+        val kbVersion = fastPhylogenyService.findKbVersion().fold(e => fail(e.toString), identity)
+        assert(!fastPhylogenyService.isUnknownName(root.name, kbVersion))
+        assert(!fastPhylogenyService.isUnknownName(root.name.toUpperCase, kbVersion))
+        assert(fastPhylogenyService.isUnknownName("not-a-real-concept", kbVersion))
+        // The cache can't vouch for a KB version it hasn't seen yet
+        assert(!fastPhylogenyService.isUnknownName("not-a-real-concept", kbVersion + 1))
+    }
+
+    test("status") {
+        val root   = init(2, 2)
+        fastPhylogenyService.refresh()
+        val status = fastPhylogenyService.status()
+        assert(!status.stale)
+        assertEquals(status.consecutiveFailures, 0)
+        assert(status.lastChecked.isDefined)
+        assert(status.retryAt.isEmpty)
+        assert(status.rowCount > 0)
     }
 
     test("findUp") {
@@ -84,3 +145,81 @@ trait FastPhylogenyServiceSuite extends DataInitializer:
         assertEquals(obtained, expected)
 
     }
+
+    test("findTaxa") {
+        val root     = init(4, 2)
+        val expected = root
+            .getDescendants
+            .asScala
+            .map(_.getPrimaryConceptName.getName)
+            .toSeq
+            .sorted
+        val opt      = fastPhylogenyService.findTaxa(root.getPrimaryConceptName.getName)
+        assert(opt.isDefined)
+        assertEquals(opt.get.map(_.name), expected)
+        assert(opt.get.forall(_.children.isEmpty))
+        assert(fastPhylogenyService.findTaxa("not-a-real-concept").isEmpty)
+    }
+
+    test("findUp, findDown and findSiblings (batch)") {
+        val root  = Concept.from(init(3, 2))
+        val child = root.children.head
+        val names = Seq(root.name, child.name, "not-a-real-concept")
+
+        val up = fastPhylogenyService.findUp(names)
+        assertEquals(up.keySet, Set(root.name, child.name))
+        assertEquals(up(child.name).name, root.name)
+
+        val down = fastPhylogenyService.findDown(names, Some(1), None)
+        assertEquals(down.keySet, Set(root.name, child.name))
+        assertEquals(down(root.name).children.map(_.name).sorted, root.children.map(_.name).sorted)
+
+        val siblings = fastPhylogenyService.findSiblings(names)
+        assertEquals(siblings.keySet, Set(root.name, child.name))
+        assertEquals(siblings(root.name), Nil)
+        assertEquals(siblings(child.name).map(_.name).sorted, root.children.map(_.name).sorted)
+    }
+
+    test("isDescendant") {
+        val root = Concept.from(init(4, 2))
+
+        @tailrec
+        def lastConcept(concept: Concept): Concept =
+            if concept.children.isEmpty then concept
+            else lastConcept(concept.children.head)
+
+        val child = root.children.head
+        val leaf  = lastConcept(child)
+
+        assertEquals(fastPhylogenyService.isDescendant(leaf.name, root.name), Some(true))
+        assertEquals(fastPhylogenyService.isDescendant(leaf.name, child.name), Some(true))
+        assertEquals(fastPhylogenyService.isDescendant(root.name, root.name), Some(true))
+        assertEquals(fastPhylogenyService.isDescendant(root.name, child.name), Some(false))
+        assertEquals(fastPhylogenyService.isDescendant("not-a-real-concept", root.name), None)
+    }
+
+    test("findLowestCommonAncestor and findPath") {
+        val root = Concept.from(init(3, 2))
+
+        @tailrec
+        def lastConcept(concept: Concept): Concept =
+            if concept.children.isEmpty then concept
+            else lastConcept(concept.children.head)
+
+        val a     = root.children.head
+        val b     = root.children.last
+        val aLeaf = lastConcept(a)
+        val bLeaf = lastConcept(b)
+
+        def lca(names: String*) = fastPhylogenyService.findLowestCommonAncestor(names).map(_.name)
+
+        assertEquals(lca(aLeaf.name, bLeaf.name), Some(root.name))
+        assertEquals(lca(aLeaf.name, a.name), Some(a.name))
+        assertEquals(lca(aLeaf.name), Some(aLeaf.name))
+        assertEquals(lca(aLeaf.name, "not-a-real-concept"), None)
+        assertEquals(lca(), None)
+
+        val path = fastPhylogenyService.findPath(aLeaf.name, bLeaf.name).getOrElse(Nil).map(_.name)
+        assertEquals(path, Seq(aLeaf.name, a.name, root.name, b.name, bLeaf.name))
+        assertEquals(fastPhylogenyService.findPath(aLeaf.name, "not-a-real-concept"), None)
+    }
@@ -40,6 +40,7 @@ import org.mbari.oni.jpa.*;
 @NamedQueries( {
     @NamedQuery(name = "Concept.eagerFindById", query = "SELECT c FROM Concept c JOIN FETCH c.conceptMetadata m WHERE c.id = :id"),
     @NamedQuery(name = "Concept.findAll", query = "SELECT c FROM Concept c"),
+    @NamedQuery(name = "Concept.findAllByIds", query = "SELECT c FROM Concept c WHERE c.id IN :ids"),
     @NamedQuery(name = "Concept.findAllByNameGlob", query = "SELECT c FROM Concept c LEFT JOIN c.conceptNames n WHERE LOWER(n.name) LIKE :name"),
     @NamedQuery(name = "Concept.findAllByNameGlobNew", query = "SELECT c FROM Concept c LEFT JOIN c.conceptNames n WHERE LOWER(n.name) LIKE :name"),
     @NamedQuery(name = "Concept.findByAphiaId", query = "SELECT c FROM Concept c WHERE c.aphiaId = :aphiaId") ,
@@ -65,6 +65,10 @@ public class ConceptRepository extends Repository {
         return concepts.stream().findFirst();
     }
 
+    public List<ConceptEntity> findAllByIds(final Collection<Long> ids) {
+        return findByNamedQuery("Concept.findAllByIds", Map.of("ids", ids));
+    }
+
     public List<ConceptEntity> findAllByNameContaining(final String nameGlob) {
         final String name = "%" + nameGlob.toLowerCase() + "%";
         return findByNamedQuery("Concept.findAllByNameGlob", Map.of("name", name));
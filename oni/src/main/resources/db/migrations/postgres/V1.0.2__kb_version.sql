@@ -0,0 +1,52 @@
+-- A single-row counter that is bumped by every change to the KB, including
+-- deletes. Caches check it with one primary key read instead of scanning
+-- MAX(LAST_UPDATED_TIME), which can't see deletions.
+
+CREATE TABLE kb_version (
+    id smallint NOT NULL PRIMARY KEY CHECK (id = 1),
+    version bigint NOT NULL,
+    last_updated_time timestamptz NOT NULL
+);
+
+INSERT INTO kb_version (id, version, last_updated_time) VALUES (1, 1, now());
+
+CREATE OR REPLACE FUNCTION bump_kb_version() RETURNS trigger AS $$
+BEGIN
+    UPDATE kb_version SET version = version + 1, last_updated_time = now() WHERE id = 1;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Statement level, so a bulk change bumps the version once
+
+CREATE TRIGGER trg_Concept_kb_version
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON concept
+FOR EACH STATEMENT EXECUTE FUNCTION bump_kb_version();
+
+CREATE TRIGGER trg_ConceptDelegate_kb_version
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON conceptdelegate
+FOR EACH STATEMENT EXECUTE FUNCTION bump_kb_version();
+
+CREATE TRIGGER trg_ConceptName_kb_version
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON conceptname
+FOR EACH STATEMENT EXECUTE FUNCTION bump_kb_version();
+
+CREATE TRIGGER trg_LinkRealization_kb_version
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON linkrealization
+FOR EACH STATEMENT EXECUTE FUNCTION bump_kb_version();
+
+CREATE TRIGGER trg_LinkTemplate_kb_version
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON linktemplate
+FOR EACH STATEMENT EXECUTE FUNCTION bump_kb_version();
+
+CREATE TRIGGER trg_Media_kb_version
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON media
+FOR EACH STATEMENT EXECUTE FUNCTION bump_kb_version();
+
+CREATE TRIGGER trg_Reference_kb_version
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON reference
+FOR EACH STATEMENT EXECUTE FUNCTION bump_kb_version();
+
+CREATE TRIGGER trg_Reference_ConceptDelegate_kb_version
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON reference_conceptdelegate
+FOR EACH STATEMENT EXECUTE FUNCTION bump_kb_version();
@@ -0,0 +1,15 @@
+-- Also announce each new KB version on the oni_kb_changed channel so that every
+-- server can refresh its caches as soon as a change commits, rather than at its
+-- next poll. Postgres only delivers the notification once the transaction
+-- commits, and drops it if the transaction rolls back.
+
+CREATE OR REPLACE FUNCTION bump_kb_version() RETURNS trigger AS $$
+DECLARE
+    new_version bigint;
+BEGIN
+    UPDATE kb_version SET version = version + 1, last_updated_time = now() WHERE id = 1
+    RETURNING version INTO new_version;
+    PERFORM pg_notify('oni_kb_changed', new_version::text);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,111 @@
+-- Record which concepts each KB version touched, so that a server notified of a
+-- new version can evict just those concepts from its caches instead of clearing
+-- them. Row level triggers log the concepts with a NULL version, then the
+-- statement level bump_kb_version() stamps them with the version it assigns.
+-- That version is taken under the kb_version row lock, so it follows commit
+-- order and a reader that has seen version N can find every change up to N.
+
+CREATE TABLE kb_change (
+    version bigint,
+    -- NULL when the change can't be tied to concepts (e.g. a TRUNCATE)
+    concept_id bigint,
+    -- true if the change may have added, removed or renamed a concept name
+    names_changed boolean NOT NULL,
+    tx_id bigint NOT NULL DEFAULT txid_current(),
+    changed_at timestamptz NOT NULL DEFAULT now()
+);
+
+CREATE INDEX idx_kb_change_version ON kb_change (version);
+
+CREATE INDEX idx_kb_change_unstamped ON kb_change (tx_id) WHERE version IS NULL;
+
+CREATE INDEX idx_kb_change_changed_at ON kb_change (changed_at);
+
+CREATE OR REPLACE FUNCTION log_kb_change() RETURNS trigger AS $$
+DECLARE
+    r jsonb;
+BEGIN
+    -- OLD is NULL for an INSERT and NEW is NULL for a DELETE
+    FOREACH r IN ARRAY ARRAY[to_jsonb(OLD), to_jsonb(NEW)] LOOP
+        CONTINUE WHEN r IS NULL;
+        CASE TG_TABLE_NAME
+            WHEN 'concept' THEN
+                -- The parent too, as a move changes both the old and the new one
+                INSERT INTO kb_change (concept_id, names_changed)
+                SELECT id, true
+                FROM unnest(ARRAY[(r->>'id')::bigint, (r->>'parentconceptid_fk')::bigint]) AS id
+                WHERE id IS NOT NULL;
+            WHEN 'conceptname' THEN
+                INSERT INTO kb_change (concept_id, names_changed) VALUES ((r->>'conceptid_fk')::bigint, true);
+            WHEN 'conceptdelegate' THEN
+                INSERT INTO kb_change (concept_id, names_changed) VALUES ((r->>'conceptid_fk')::bigint, false);
+            WHEN 'reference' THEN
+                INSERT INTO kb_change (concept_id, names_changed)
+                SELECT d.conceptid_fk, false
+                FROM reference_conceptdelegate rc JOIN conceptdelegate d ON d.id = rc.conceptdelegateid_fk
+                WHERE rc.referenceid_fk = (r->>'id')::bigint;
+            ELSE
+                -- linkrealization, linktemplate, media and reference_conceptdelegate
+                INSERT INTO kb_change (concept_id, names_changed)
+                SELECT d.conceptid_fk, false
+                FROM conceptdelegate d
+                WHERE d.id = (r->>'conceptdelegateid_fk')::bigint;
+        END CASE;
+    END LOOP;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION bump_kb_version() RETURNS trigger AS $$
+DECLARE
+    new_version bigint;
+BEGIN
+    UPDATE kb_version SET version = version + 1, last_updated_time = now() WHERE id = 1
+    RETURNING version INTO new_version;
+    IF TG_OP = 'TRUNCATE' THEN
+        INSERT INTO kb_change (concept_id, names_changed) VALUES (NULL, true);
+    END IF;
+    -- Row level triggers have already run for this statement
+    UPDATE kb_change SET version = new_version WHERE version IS NULL AND tx_id = txid_current();
+    -- Servers only need the changes since they last looked, and cache entries
+    -- expire long before this. Purged only every 1000th version, as every KB
+    -- write waits on the kb_version row lock held here.
+    IF new_version % 1000 = 0 THEN
+        DELETE FROM kb_change WHERE changed_at < now() - interval '1 day';
+    END IF;
+    PERFORM pg_notify('oni_kb_changed', new_version::text);
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_Concept_kb_change
+AFTER INSERT OR UPDATE OR DELETE ON concept
+FOR EACH ROW EXECUTE FUNCTION log_kb_change();
+
+CREATE TRIGGER trg_ConceptDelegate_kb_change
+AFTER INSERT OR UPDATE OR DELETE ON conceptdelegate
+FOR EACH ROW EXECUTE FUNCTION log_kb_change();
+
+CREATE TRIGGER trg_ConceptName_kb_change
+AFTER INSERT OR UPDATE OR DELETE ON conceptname
+FOR EACH ROW EXECUTE FUNCTION log_kb_change();
+
+CREATE TRIGGER trg_LinkRealization_kb_change
+AFTER INSERT OR UPDATE OR DELETE ON linkrealization
+FOR EACH ROW EXECUTE FUNCTION log_kb_change();
+
+CREATE TRIGGER trg_LinkTemplate_kb_change
+AFTER INSERT OR UPDATE OR DELETE ON linktemplate
+FOR EACH ROW EXECUTE FUNCTION log_kb_change();
+
+CREATE TRIGGER trg_Media_kb_change
+AFTER INSERT OR UPDATE OR DELETE ON media
+FOR EACH ROW EXECUTE FUNCTION log_kb_change();
+
+CREATE TRIGGER trg_Reference_kb_change
+AFTER INSERT OR UPDATE OR DELETE ON reference
+FOR EACH ROW EXECUTE FUNCTION log_kb_change();
+
+CREATE TRIGGER trg_Reference_ConceptDelegate_kb_change
+AFTER INSERT OR UPDATE OR DELETE ON reference_conceptdelegate
+FOR EACH ROW EXECUTE FUNCTION log_kb_change();
@@ -0,0 +1,88 @@
+-- A single-row counter that is bumped by every change to the KB, including
+-- deletes. Caches check it with one primary key read instead of scanning
+-- MAX(LAST_UPDATED_TIME), which can't see deletions.
+
+CREATE TABLE kb_version (
+    id smallint NOT NULL PRIMARY KEY CHECK (id = 1),
+    version bigint NOT NULL,
+    last_updated_time datetimeoffset(6) NOT NULL
+);
+
+INSERT INTO kb_version (id, version, last_updated_time) VALUES (1, 1, SYSDATETIMEOFFSET());
+GO
+
+-- SQL Server triggers fire once per statement, so a bulk change bumps the
+-- version once. NOCOUNT keeps the trigger's update out of the row counts
+-- that Hibernate checks for optimistic locking.
+
+CREATE TRIGGER trg_Concept_kb_version ON Concept
+AFTER INSERT, UPDATE, DELETE
+AS
+BEGIN
+    SET NOCOUNT ON;
+    UPDATE kb_version SET version = version + 1, last_updated_time = SYSDATETIMEOFFSET() WHERE id = 1;
+END;
+GO
+
+CREATE TRIGGER trg_ConceptDelegate_kb_version ON ConceptDelegate
+AFTER INSERT, UPDATE, DELETE
+AS
+BEGIN
+    SET NOCOUNT ON;
+    UPDATE kb_version SET version = version + 1, last_updated_time = SYSDATETIMEOFFSET() WHERE id = 1;
+END;
+GO
+
+CREATE TRIGGER trg_ConceptName_kb_version ON ConceptName
+AFTER INSERT, UPDATE, DELETE
+AS
+BEGIN
+    SET NOCOUNT ON;
+    UPDATE kb_version SET version = version + 1, last_updated_time = SYSDATETIMEOFFSET() WHERE id = 1;
+END;
+GO
+
+CREATE TRIGGER trg_LinkRealization_kb_version ON LinkRealization
+AFTER INSERT, UPDATE, DELETE
+AS
+BEGIN
+    SET NOCOUNT ON;
+    UPDATE kb_version SET version = version + 1, last_updated_time = SYSDATETIMEOFFSET() WHERE id = 1;
+END;
+GO
+
+CREATE TRIGGER trg_LinkTemplate_kb_version ON LinkTemplate
+AFTER INSERT, UPDATE, DELETE
+AS
+BEGIN
+    SET NOCOUNT ON;
+    UPDATE kb_version SET version = version + 1, last_updated_time = SYSDATETIMEOFFSET() WHERE id = 1;
+END;
+GO
+
+CREATE TRIGGER trg_Media_kb_version ON Media
+AFTER INSERT, UPDATE, DELETE
+AS
+BEGIN
+    SET NOCOUNT ON;
+    UPDATE kb_version SET version = version + 1, last_updated_time = SYSDATETIMEOFFSET() WHERE id = 1;
+END;
+GO
+
+CREATE TRIGGER trg_Reference_kb_version ON Reference
+AFTER INSERT, UPDATE, DELETE
+AS
+BEGIN
+    SET NOCOUNT ON;
+    UPDATE kb_version SET version = version + 1, last_updated_time = SYSDATETIMEOFFSET() WHERE id = 1;
+END;
+GO
+
+CREATE TRIGGER trg_Reference_ConceptDelegate_kb_version ON Reference_ConceptDelegate
+AFTER INSERT, UPDATE, DELETE
+AS
+BEGIN
+    SET NOCOUNT ON;
+    UPDATE kb_version SET version = version + 1, last_updated_time = SYSDATETIMEOFFSET() WHERE id = 1;
+END;
+GO
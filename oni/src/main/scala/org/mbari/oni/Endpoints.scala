@@ -35,6 +35,8 @@ import org.mbari.oni.endpoints.{
     UserAccountEndpoints
 }
 import org.mbari.oni.etc.jwt.JwtService
+import org.mbari.oni.etc.prometheus.PhylogenyMetrics
+import org.mbari.oni.jdbc.KbChangeListener
 import sttp.tapir.server.ServerEndpoint
 import sttp.tapir.server.metrics.prometheus.PrometheusMetrics
 import sttp.tapir.swagger.bundle.SwaggerInterpreter
@@ -56,13 +58,17 @@ object Endpoints:
 
     val entityMangerFactory: EntityManagerFactory = AppConfig.DefaultEntityManagerFactory
 
-    val phylogenyEndpoints: PhylogenyEndpoints = PhylogenyEndpoints(entityMangerFactory)
+    val phylogenyEndpoints: PhylogenyEndpoints =
+        PhylogenyEndpoints(entityMangerFactory, AppConfig.DefaultPhylogenyConfig)
 
     val authorizationEndpoints: AuthorizationEndpoints     = AuthorizationEndpoints(entityMangerFactory)
-    val conceptEndpoints: ConceptEndpoints                 = ConceptEndpoints(entityMangerFactory)
-    val conceptNameEndpoints: ConceptNameEndpoints         = ConceptNameEndpoints(entityMangerFactory)
-    val healthEndpoints: HealthEndpoints                   = HealthEndpoints()
-    val historyEndpoints: HistoryEndpoints                 = HistoryEndpoints(entityMangerFactory, phylogenyEndpoints.service)
+    val conceptEndpoints: ConceptEndpoints                 =
+        ConceptEndpoints(entityMangerFactory, Some(phylogenyEndpoints.service))
+    val conceptNameEndpoints: ConceptNameEndpoints         =
+        ConceptNameEndpoints(entityMangerFactory, Some(conceptEndpoints.conceptCache))
+    val healthEndpoints: HealthEndpoints                   = HealthEndpoints(Some(phylogenyEndpoints.service))
+    val historyEndpoints: HistoryEndpoints                 =
+        HistoryEndpoints(entityMangerFactory, phylogenyEndpoints.service, Some(conceptEndpoints.conceptCache))
     val linkEndpoints: LinkEndpoints                       = LinkEndpoints(entityMangerFactory)
     val linkRealizationEndpoints: LinkRealizationEndpoints = LinkRealizationEndpoints(entityMangerFactory)
     val linkTemplateEndpoints: LinkTemplateEndpoints       = LinkTemplateEndpoints(entityMangerFactory)
@@ -72,6 +78,16 @@ object Endpoints:
     val referenceEndpoints: ReferenceEndpoints             = ReferenceEndpoints(entityMangerFactory)
     val userAccountEndpoints: UserAccountEndpoints         = UserAccountEndpoints(entityMangerFactory)
 
+    /** Refreshes this server's caches when a KB change commits on any server. Postgres only. */
+    val kbChangeListener: Option[KbChangeListener] =
+        val databaseConfig = AppConfig.DefaultDatabaseConfig
+        Option.when(databaseConfig.isPostgres && databaseConfig.listen)(
+            KbChangeListener(databaseConfig)(version =>
+                phylogenyEndpoints.service.refresh()
+                conceptEndpoints.conceptCache.kbChanged(version)
+            ).start()
+        )
+
     val endpoints: List[ServerEndpoint[Any, Future]] = List(
         authorizationEndpoints,
         conceptEndpoints,
@@ -94,5 +110,6 @@ object Endpoints:
 
     val prometheusMetrics: PrometheusMetrics[Future] = PrometheusMetrics.default[Future]()
     val metricsEndpoint: ServerEndpoint[Any, Future] = prometheusMetrics.metricsEndpoint
+    PhylogenyMetrics.register(phylogenyEndpoints.service, prometheusMetrics.registry)
 
     val allImpl: List[ServerEndpoint[Any, Future]] = endpoints ++ docEndpoints ++ List(metricsEndpoint)
@@ -20,6 +20,8 @@ import com.typesafe.config.ConfigFactory
 import jakarta.persistence.EntityManagerFactory
 import org.mbari.oni.jpa.EntityManagerFactories
 
+import java.nio.file.Path
+
 /**
  * Parse configuration info from reference.conf and application.conf
  */
@@ -59,7 +61,15 @@ object AppConfig:
         driver = Config.getString("database.driver"),
         url = Config.getString("database.url"),
         user = Config.getString("database.user"),
-        password = Config.getString("database.password")
+        password = Config.getString("database.password"),
+        listen = Config.getBoolean("database.listen")
+    )
+
+    lazy val DefaultPhylogenyConfig: PhylogenyConfig = PhylogenyConfig(
+        refreshInterval = Config.getDuration("phylogeny.refresh.interval"),
+        responseCacheMaxBytes = Config.getBytes("phylogeny.response.cache.size"),
+        responseCacheGzip = Config.getBoolean("phylogeny.response.cache.gzip"),
+        snapshotFile = Some(Config.getString("phylogeny.snapshot.file")).filter(_.nonEmpty).map(Path.of(_))
     )
 
     lazy val DefaultEntityManagerFactory: EntityManagerFactory =
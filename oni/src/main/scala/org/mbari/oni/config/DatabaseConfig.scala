@@ -18,7 +18,18 @@ package org.mbari.oni.config
 
 import com.zaxxer.hikari.HikariDataSource
 
-case class DatabaseConfig(logLevel: String, driver: String, url: String, user: String, password: String):
+/**
+ * @param listen
+ *   On Postgres, listen for notifications of KB changes (see [[org.mbari.oni.jdbc.KbChangeListener]])
+ */
+case class DatabaseConfig(
+    logLevel: String,
+    driver: String,
+    url: String,
+    user: String,
+    password: String,
+    listen: Boolean = true
+):
 
     lazy val dataSource: HikariDataSource =
         val ds = new com.zaxxer.hikari.HikariDataSource()
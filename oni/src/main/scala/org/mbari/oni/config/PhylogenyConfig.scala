@@ -0,0 +1,42 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.config
+
+import java.nio.file.Path
+import java.time.Duration
+
+/**
+ * @param refreshInterval
+ *   How often the phylogeny cache polls the database for changes. Zero means check on every request.
+ * @param responseCacheMaxBytes
+ *   The most memory that pre-encoded phylogeny responses may use
+ * @param responseCacheGzip
+ *   Also keep a gzip-compressed copy of each cached response for clients that accept it
+ * @param snapshotFile
+ *   Where to save the phylogeny cache so it can be restored on restart. None to always load it from the database.
+ */
+case class PhylogenyConfig(
+    refreshInterval: Duration,
+    responseCacheMaxBytes: Long,
+    responseCacheGzip: Boolean,
+    snapshotFile: Option[Path] = None
+)
+
+object PhylogenyConfig:
+
+    /** Checks the database on every request and doesn't compress responses. Useful for tests and tools. */
+    val Unscheduled: PhylogenyConfig = PhylogenyConfig(Duration.ZERO, 16L * 1024 * 1024, false)
@@ -35,3 +35,11 @@ final case class NotFound(message: String, responseCode: Int = 404)     extends
 final case class ServerError(message: String, responseCode: Int = 500)  extends ErrorMsg
 final case class Unauthorized(message: String, responseCode: Int = 401) extends ErrorMsg
 final case class BadRequest(message: String, responseCode: Int = 400)   extends ErrorMsg
+
+/**
+ * Not really an error. Answers a conditional GET whose ETag still matches; it is sent without a body.
+ * @param etag
+ *   The entity tag the full response would have had, unquoted. Sent back so caches can refresh their copy.
+ */
+final case class NotModified(etag: String, message: String = "Not modified", responseCode: Int = 304)
+    extends ErrorMsg
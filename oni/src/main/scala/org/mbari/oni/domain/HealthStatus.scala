@@ -26,7 +26,8 @@ final case class HealthStatus(
     totalMemory: Long,
     application: String = AppConfig.Name,
     version: String = AppConfig.Version,
-    description: String = AppConfig.Description
+    description: String = AppConfig.Description,
+    phylogeny: Option[PhylogenyCacheStatus] = None
 )
 
 object HealthStatus:
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.domain
+
+/**
+ * A name close to one that wasn't found
+ *
+ * @param name
+ *   A primary or alternate name of a concept
+ * @param primaryName
+ *   The concept's primary name
+ * @param distance
+ *   The number of single-character edits, ignoring case, between `name` and the name that was looked up
+ */
+case class NameSuggestion(name: String, primaryName: String, distance: Int)
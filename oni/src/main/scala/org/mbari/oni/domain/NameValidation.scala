@@ -0,0 +1,36 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.domain
+
+/**
+ * The result of checking a name against the KB
+ *
+ * @param name
+ *   The name as given
+ * @param exists
+ *   true if the name is a primary or alternate name of a concept
+ * @param primaryName
+ *   The concept's primary name, the canonical form of `name`
+ * @param rank
+ *   The concept's rank
+ */
+case class NameValidation(
+    name: String,
+    exists: Boolean,
+    primaryName: Option[String] = None,
+    rank: Option[String] = None
+)
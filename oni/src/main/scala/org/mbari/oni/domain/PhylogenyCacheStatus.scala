@@ -0,0 +1,50 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.domain
+
+import java.time.Instant
+
+/**
+ * How fresh the in-memory phylogeny cache is.
+ *
+ * @param version
+ *   The version of the snapshot being served
+ * @param rowCount
+ *   The number of concept names in it
+ * @param lastUpdate
+ *   The most recent change to the KB that the snapshot includes
+ * @param kbVersion
+ *   The database's KB version counter when the snapshot was loaded
+ * @param lastChecked
+ *   When the database was last successfully checked for changes. None if it never has been.
+ * @param stale
+ *   True while the database can't be reached, so the snapshot may be out of date
+ * @param consecutiveFailures
+ *   How many attempts to reach the database have failed in a row
+ * @param retryAt
+ *   When the database will next be tried, while it is failing
+ */
+final case class PhylogenyCacheStatus(
+    version: Long,
+    rowCount: Int,
+    lastUpdate: Instant,
+    kbVersion: Long,
+    lastChecked: Option[Instant],
+    stale: Boolean,
+    consecutiveFailures: Int,
+    retryAt: Option[Instant]
+)
@@ -20,24 +20,30 @@ import jakarta.persistence.EntityManagerFactory
 import org.mbari.oni.domain.{ConceptCreate, ConceptMetadata, ConceptUpdate, ErrorMsg, Rank, ServerError}
 import org.mbari.oni.etc.circe.CirceCodecs.given
 import org.mbari.oni.etc.jwt.JwtService
+import org.mbari.oni.jdbc.FastPhylogenyService
 import org.mbari.oni.services.{ConceptCache, ConceptNameService, ConceptService, RankValidator}
+import sttp.model.headers.ETag
 import sttp.tapir.json.circe.*
 import sttp.tapir.server.ServerEndpoint
 import sttp.tapir.{Endpoint, *}
 
 import scala.concurrent.{ExecutionContext, Future}
 
-class ConceptEndpoints(entityManagerFactory: EntityManagerFactory)(using
+class ConceptEndpoints(
+    entityManagerFactory: EntityManagerFactory,
+    fastPhylogenyService: Option[FastPhylogenyService] = None
+)(using
     jwtService: JwtService,
     executionContext: ExecutionContext
 ) extends Endpoints:
 
     private val service            = ConceptService(entityManagerFactory)
     private val conceptNameService = ConceptNameService(entityManagerFactory)
-    private val conceptCache       = ConceptCache(service, conceptNameService)
     private val base               = "concept"
     private val tag                = "Concept"
 
+    val conceptCache: ConceptCache = ConceptCache(service, conceptNameService, fastPhylogenyService)
+
     val allEndpoint: Endpoint[Unit, Unit, ErrorMsg, Seq[String], Any] = openEndpoint
         .get
         .in(base)
@@ -64,11 +70,12 @@ class ConceptEndpoints(entityManagerFactory: EntityManagerFactory)(using
     val createEndpointImpl: ServerEndpoint[Any, Future] = createEndpoint
         .serverSecurityLogic(jwtOpt => verifyLoginAsync(jwtOpt))
         .serverLogic { userAccount => conceptCreate =>
-            handleErrorsAsync(service.create(conceptCreate, userAccount.username))
-                .andThen(v =>
-                    conceptCache.clear()
-                    v
+            val names = conceptCreate.name +: conceptCreate.parentName.toSeq
+            handleErrorsAsync(
+                conceptCache.invalidating(names, namesChanged = true)(
+                    service.create(conceptCreate, userAccount.username)
                 )
+            )
         }
 
     val deleteEndpoint: Endpoint[Option[String], String, ErrorMsg, Unit, Any] = secureEndpoint
@@ -83,15 +90,12 @@ class ConceptEndpoints(entityManagerFactory: EntityManagerFactory)(using
         .serverSecurityLogic(jwtOpt => verifyLoginAsync(jwtOpt))
         .serverLogic { userAccount => name =>
             Future(
-                service
-                    .delete(name, userAccount.username)
+                conceptCache
+                    .invalidating(Seq(name), namesChanged = true)(service.delete(name, userAccount.username))
                     .fold(
                         error => Left(ServerError(error.getMessage)),
                         _ => Right(())
                     )
-            ).andThen(v =>
-                conceptCache.clear()
-                v
             )
         }
 
@@ -119,16 +123,20 @@ class ConceptEndpoints(entityManagerFactory: EntityManagerFactory)(using
         handleErrorsAsync(service.findChildrenByParentName(name).map(_.toSeq.sortBy(_.name)))
     }
 
-    val findByName: Endpoint[Unit, String, ErrorMsg, ConceptMetadata, Any] = openEndpoint
+    val findByName: Endpoint[Unit, (String, Option[String]), ErrorMsg, (ConceptMetadata, ETag), Any] = openEndpoint
         .get
         .in(base / path[String]("name"))
+        .in(ifNoneMatch)
         .out(jsonBody[ConceptMetadata])
+        .out(etagHeader)
+        .errorOutVariantPrepend(notModifiedVariant)
         .name("findByName")
-        .description("Find a concept by name")
+        .description("Find a concept by name. Supports conditional requests with If-None-Match.")
         .tag(tag)
 
-    val findByNameImpl: ServerEndpoint[Any, Future] = findByName.serverLogic { name =>
-        handleErrorsAsync(conceptCache.findByName(name))
+    val findByNameImpl: ServerEndpoint[Any, Future] = findByName.serverLogic { (name, ifNoneMatch) =>
+        handleErrorsAsync(conceptCache.findTaggedByName(name))
+            .map(_.flatMap(tagged => conditionally(ifNoneMatch, ETag(tagged.tag))(tagged.metadata)))
     }
 
     val findByNameContaining: Endpoint[Unit, String, ErrorMsg, Seq[ConceptMetadata], Any] = openEndpoint
@@ -140,7 +148,34 @@ class ConceptEndpoints(entityManagerFactory: EntityManagerFactory)(using
         .tag(tag)
 
     val findByNameContainingImpl: ServerEndpoint[Any, Future] = findByNameContaining.serverLogic { name =>
-        handleErrorsAsync(service.findByGlob(name).map(_.toSeq.sortBy(_.name)))
+        handleErrorsAsync(
+            fastPhylogenyService match
+                // Narrow to the matching concepts in memory, then load the metadata of just those
+                case Some(phylogeny) if !ConceptEndpoints.hasWildcard(name) =>
+                    service.findByIds(phylogeny.findIdsContaining(name)).map(_.sortBy(_.name))
+                case _                                                      =>
+                    service.findByGlob(name).map(_.toSeq.sortBy(_.name))
+        )
+    }
+
+    val findNamesContaining: Endpoint[Unit, String, ErrorMsg, Seq[String], Any] = openEndpoint
+        .get
+        .in(base / "find" / path[String]("name") / "names")
+        .out(jsonBody[Seq[String]])
+        .name("findNamesContaining")
+        .description(
+            "Find the primary names of concepts with a name containing the given text, without loading their metadata"
+        )
+        .tag(tag)
+
+    val findNamesContainingImpl: ServerEndpoint[Any, Future] = findNamesContaining.serverLogic { name =>
+        handleErrorsAsync(
+            fastPhylogenyService match
+                case Some(phylogeny) if !ConceptEndpoints.hasWildcard(name) =>
+                    Right(phylogeny.findNamesContaining(name))
+                case _                                                      =>
+                    service.findByGlob(name).map(_.toSeq.map(_.name).sorted)
+        )
     }
 
     val findRoot: Endpoint[Unit, Unit, ErrorMsg, ConceptMetadata, Any] = openEndpoint
@@ -185,17 +220,15 @@ class ConceptEndpoints(entityManagerFactory: EntityManagerFactory)(using
         .serverSecurityLogic(jwtOpt => verifyLoginAsync(jwtOpt))
         .serverLogic { userAccount => (name, conceptUpdate) =>
             Future(
-                service
-                    .update(name, conceptUpdate, userAccount.username)
+                conceptCache
+                    .invalidating(name +: conceptUpdate.parentName.toSeq, namesChanged = false)(
+                        service.update(name, conceptUpdate, userAccount.username)
+                    )
                     .fold(
                         error => Left(ServerError(error.getMessage)),
                         concept => Right(concept)
                     )
             )
-                .andThen(v =>
-                    conceptCache.clear()
-                    v
-                )
         }
 
     override val all: List[Endpoint[?, ?, ?, ?, ?]] = List(
@@ -203,6 +236,7 @@ class ConceptEndpoints(entityManagerFactory: EntityManagerFactory)(using
         findParentEndpoint,
         findChildrenEndpoint,
         findByNameContaining,
+        findNamesContaining,
         listValidRanks,
         findByName,
         allEndpoint,
@@ -216,6 +250,7 @@ class ConceptEndpoints(entityManagerFactory: EntityManagerFactory)(using
         findParentEndpointImpl,
         findChildrenEndpointImpl,
         findByNameContainingImpl,
+        findNamesContainingImpl,
         listValidRanksImpl,
         findByNameImpl,
         allEndpointImpl,
@@ -223,3 +258,8 @@ class ConceptEndpoints(entityManagerFactory: EntityManagerFactory)(using
         deleteEndpointImpl,
         updateEndpointImpl
     )
+
+object ConceptEndpoints:
+
+    /** The database search is a SQL LIKE, so these still need to go to the database */
+    def hasWildcard(name: String): Boolean = name.exists(c => c == '%' || c == '_')
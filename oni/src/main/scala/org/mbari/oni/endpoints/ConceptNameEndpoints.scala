@@ -20,14 +20,18 @@ import jakarta.persistence.EntityManagerFactory
 import org.mbari.oni.domain.{ConceptNameCreate, ConceptNameUpdate, ErrorMsg, Page, RawConcept}
 import org.mbari.oni.etc.circe.CirceCodecs.given
 import org.mbari.oni.etc.jwt.JwtService
-import org.mbari.oni.services.ConceptNameService
+import org.mbari.oni.services.{ConceptCache, ConceptNameService}
 import sttp.tapir.json.circe.*
 import sttp.tapir.server.ServerEndpoint
 import sttp.tapir.{Endpoint, *}
 
 import scala.concurrent.{ExecutionContext, Future}
 
-class ConceptNameEndpoints(entityManagerFactory: EntityManagerFactory)(using
+/**
+ * @param conceptCache
+ *   The cache behind the concept endpoints. Names changed here are evicted from it.
+ */
+class ConceptNameEndpoints(entityManagerFactory: EntityManagerFactory, conceptCache: Option[ConceptCache] = None)(using
     jwtService: JwtService,
     executionContext: ExecutionContext
 ) extends Endpoints:
@@ -63,7 +67,7 @@ class ConceptNameEndpoints(entityManagerFactory: EntityManagerFactory)(using
     val addConceptNameEndpointImpl: ServerEndpoint[Any, Future] = addConceptNameEndpoint
         .serverSecurityLogic(jwtOpt => verifyLoginAsync(jwtOpt))
         .serverLogic { userAccount => dto =>
-            handleErrorsAsync(service.addName(dto, userAccount.username))
+            handleErrorsAsync(invalidating(Seq(dto.name, dto.newName))(service.addName(dto, userAccount.username)))
         }
 
     val findConceptNameEndpoint: Endpoint[Unit, String, ErrorMsg, RawConcept, Any] = openEndpoint
@@ -92,7 +96,8 @@ class ConceptNameEndpoints(entityManagerFactory: EntityManagerFactory)(using
     val updateConceptNameEndpointImpl: ServerEndpoint[Any, Future] = updateConceptNameEndpoint
         .serverSecurityLogic(jwtOpt => verifyLoginAsync(jwtOpt))
         .serverLogic { userAccount => (name, dto) =>
-            handleErrorsAsync(service.updateName(name, dto, userAccount.username))
+            val names = name +: dto.newName.toSeq
+            handleErrorsAsync(invalidating(names)(service.updateName(name, dto, userAccount.username)))
         }
 
     val deleteConceptNameEndpoint: Endpoint[Option[String], String, ErrorMsg, RawConcept, Any] = secureEndpoint
@@ -106,9 +111,13 @@ class ConceptNameEndpoints(entityManagerFactory: EntityManagerFactory)(using
     val deleteConceptNameEndpointImpl: ServerEndpoint[Any, Future] = deleteConceptNameEndpoint
         .serverSecurityLogic(jwtOpt => verifyLoginAsync(jwtOpt))
         .serverLogic { userAccount => name =>
-            handleErrorsAsync(service.deleteName(name, userAccount.username))
+            handleErrorsAsync(invalidating(Seq(name))(service.deleteName(name, userAccount.username)))
         }
 
+    /** Make a change to concept names, evicting them from the [[ConceptCache]] if there is one */
+    private def invalidating[A](names: Seq[String])(change: => A): A =
+        conceptCache.fold(change)(_.invalidating(names, namesChanged = true)(change))
+
     override def all: List[Endpoint[?, ?, ?, ?, ?]] = List(
         findConceptNameEndpoint,
         allEndpoint,
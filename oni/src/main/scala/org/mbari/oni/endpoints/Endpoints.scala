@@ -24,8 +24,8 @@ import org.mbari.oni.etc.circe.CirceCodecs
 import org.mbari.oni.etc.circe.CirceCodecs.given
 import org.mbari.oni.etc.jdk.Loggers.given
 import org.mbari.oni.etc.jwt.JwtService
-import sttp.model.StatusCode
-import sttp.model.headers.WWWAuthenticateChallenge
+import sttp.model.headers.{ETag, WWWAuthenticateChallenge}
+import sttp.model.{HeaderNames, StatusCode}
 import sttp.shared.Identity
 import sttp.tapir.*
 import sttp.tapir.generic.auto.*
@@ -85,6 +85,8 @@ trait Endpoints:
         Schema.derived[Page[Seq[ExtendedHistory]]]
     implicit lazy val sPageSeqString: Schema[Page[Seq[String]]]                     = Schema.derived[Page[Seq[String]]]
     implicit lazy val sPageSeqReference: Schema[Page[Seq[Reference]]]               = Schema.derived[Page[Seq[Reference]]]
+    implicit lazy val sNameSuggestion: Schema[NameSuggestion]                       = Schema.derived[NameSuggestion]
+    implicit lazy val sNameValidation: Schema[NameValidation]                       = Schema.derived[NameValidation]
     implicit lazy val sRank: Schema[Rank]                                           = Schema.derived[Rank]
     implicit lazy val sUserAccount: Schema[UserAccount]                             = Schema.derived[UserAccount]
     implicit lazy val sUserAccountCreate: Schema[UserAccountCreate]                 = Schema.derived[UserAccountCreate]
@@ -128,6 +130,45 @@ trait Endpoints:
         )
     )
 
+    /** The If-None-Match header of a conditional GET */
+    val ifNoneMatch: EndpointInput[Option[String]] = header[Option[String]](HeaderNames.IfNoneMatch)
+
+    /** The ETag header of a response that supports conditional GETs */
+    val etagHeader: EndpointOutput[ETag] = header[ETag](HeaderNames.Etag)
+
+    /**
+     * Add to an endpoint's error outputs when it accepts [[ifNoneMatch]]. Like a full response, the 304 carries the
+     * ETag, as RFC 9110 requires.
+     */
+    val notModifiedVariant: EndpointOutput.OneOfVariant[NotModified] =
+        oneOfVariant(
+            statusCode(StatusCode.NotModified)
+                .and(etagHeader.map(etag => NotModified(etag.tag))(notModified => ETag(notModified.etag)))
+        )
+
+    /**
+     * Pair a response with its ETag, or answer with [[NotModified]] if the client already has that version.
+     *
+     * @param ifNoneMatch
+     *   The request's If-None-Match header
+     * @param etag
+     *   The ETag of the current version of the response
+     * @param value
+     *   The response. Not evaluated when the client's copy is current.
+     */
+    def conditionally[T](ifNoneMatch: Option[String], etag: ETag)(value: => T): Either[ErrorMsg, (T, ETag)] =
+        if matchesETag(ifNoneMatch, etag) then Left(NotModified(etag.tag))
+        else Right((value, etag))
+
+    /**
+     * Uses the weak comparison that RFC 9110 prescribes for If-None-Match. A header that can't be parsed never
+     * matches, so the client just gets a full response.
+     */
+    def matchesETag(ifNoneMatch: Option[String], etag: ETag): Boolean =
+        ifNoneMatch.exists(header =>
+            header.trim == "*" || ETag.parseList(header).exists(_.exists(_.tag == etag.tag))
+        )
+
     def handleErrors[T](f: => Either[Throwable, T]): Either[ErrorMsg, T] =
         f match
             case Right(concept)                    => Right(concept)
@@ -18,6 +18,7 @@ package org.mbari.oni.endpoints
 
 import org.mbari.oni.domain.{ErrorMsg, HealthStatus}
 import org.mbari.oni.etc.circe.CirceCodecs.given
+import org.mbari.oni.jdbc.FastPhylogenyService
 import sttp.tapir.*
 import sttp.tapir.generic.auto.*
 import sttp.tapir.json.circe.*
@@ -25,7 +26,12 @@ import sttp.tapir.server.ServerEndpoint
 
 import scala.concurrent.{ExecutionContext, Future}
 
-class HealthEndpoints(using executionContext: ExecutionContext) extends Endpoints:
+/**
+ * @param phylogenyService
+ *   When given, the health status includes how fresh its cache is
+ */
+class HealthEndpoints(phylogenyService: Option[FastPhylogenyService] = None)(using executionContext: ExecutionContext)
+    extends Endpoints:
 
     val healthEndpoint: Endpoint[Unit, Unit, ErrorMsg, HealthStatus, Any] =
         openEndpoint
@@ -37,7 +43,9 @@ class HealthEndpoints(using executionContext: ExecutionContext) extends Endpoint
             .tag("Health")
 
     val healthEndpointImpl: ServerEndpoint[Any, Future] =
-        healthEndpoint.serverLogic(_ => Future(Right(HealthStatus.Default)))
+        healthEndpoint.serverLogic(_ =>
+            Future(Right(HealthStatus.Default.copy(phylogeny = phylogenyService.map(_.status()))))
+        )
 
     override def all: List[Endpoint[?, ?, ?, ?, ?]] =
         List(healthEndpoint)
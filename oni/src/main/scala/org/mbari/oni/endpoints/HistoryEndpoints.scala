@@ -21,14 +21,23 @@ import org.mbari.oni.domain.{Count, ErrorMsg, ExtendedHistory, Page, ServerError
 import org.mbari.oni.etc.circe.CirceCodecs.given
 import org.mbari.oni.etc.jwt.JwtService
 import org.mbari.oni.jdbc.FastPhylogenyService
-import org.mbari.oni.services.{HistoryActionService, HistoryService}
+import org.mbari.oni.jpa.entities.HistoryEntity
+import org.mbari.oni.services.{ConceptCache, HistoryActionService, HistoryService}
 import sttp.tapir.json.circe.*
 import sttp.tapir.server.ServerEndpoint
 import sttp.tapir.{Endpoint, *}
 
 import scala.concurrent.{ExecutionContext, Future}
 
-class HistoryEndpoints(entityManagerFactory: EntityManagerFactory, fastPhylogenyService: FastPhylogenyService)(using
+/**
+ * @param conceptCache
+ *   The cache behind the concept endpoints. Concepts changed by approving or rejecting a change are evicted from it.
+ */
+class HistoryEndpoints(
+    entityManagerFactory: EntityManagerFactory,
+    fastPhylogenyService: FastPhylogenyService,
+    conceptCache: Option[ConceptCache] = None
+)(using
     jwtService: JwtService,
     executionContext: ExecutionContext
 ) extends Endpoints:
@@ -176,8 +185,7 @@ class HistoryEndpoints(entityManagerFactory: EntityManagerFactory, fastPhylogeny
         .serverSecurityLogic(jwtOpt => verifyLoginAsync(jwtOpt))
         .serverLogic { userAccount => id =>
             Future {
-                historyActionService
-                    .approve(id, userAccount.username)
+                invalidating(id)(historyActionService.approve(id, userAccount.username))
                     .fold(
                         error => Left(ServerError(error.getMessage)),
                         history => Right(history)
@@ -197,8 +205,7 @@ class HistoryEndpoints(entityManagerFactory: EntityManagerFactory, fastPhylogeny
         .serverSecurityLogic(jwtOpt => verifyLoginAsync(jwtOpt))
         .serverLogic { userAccount => id =>
             Future {
-                historyActionService
-                    .reject(id, userAccount.username)
+                invalidating(id)(historyActionService.reject(id, userAccount.username))
                     .fold(
                         error => Left(ServerError(error.getMessage)),
                         history => Right(history)
@@ -206,6 +213,21 @@ class HistoryEndpoints(entityManagerFactory: EntityManagerFactory, fastPhylogeny
             }
         }
 
+    /**
+     * Approving or rejecting a change can add, rename, remove or move concept names (e.g. rejecting an added name
+     * deletes it), so the concept and any names in the change are evicted. The history is read before the change is
+     * made, so that the cache can still find concepts that it deletes.
+     */
+    private def invalidating(id: Long)(
+        change: => Either[Throwable, ExtendedHistory]
+    ): Either[Throwable, ExtendedHistory] =
+        conceptCache.flatMap(cache => service.findById(id).toOption.map((cache, _))) match
+            case Some((cache, history)) =>
+                val names        = history.concept +: (history.oldValue ++ history.newValue).toSeq
+                val namesChanged = HistoryEndpoints.NameFields.contains(history.field)
+                cache.invalidating(names, namesChanged)(change)
+            case None                   => change
+
     override def all: List[Endpoint[?, ?, ?, ?, ?]] = List(
         findByConceptNameEndpoint,
         approveEndpoint,
@@ -229,3 +251,13 @@ class HistoryEndpoints(entityManagerFactory: EntityManagerFactory, fastPhylogeny
         deleteEndpointImpl,
         findByIdEndpointImpl
     )
+
+object HistoryEndpoints:
+
+    /** Changes to these fields can add, rename, remove or move concept names */
+    private val NameFields = Set(
+        HistoryEntity.FIELD_CONCEPT_CHILD,
+        HistoryEntity.FIELD_CONCEPT_PARENT,
+        HistoryEntity.FIELD_CONCEPTNAME,
+        HistoryEntity.FIELD_CONCEPTNAME_PRIMARY
+    )
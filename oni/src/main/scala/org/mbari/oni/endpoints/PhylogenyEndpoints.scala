@@ -16,46 +16,151 @@
 
 package org.mbari.oni.endpoints
 
+import io.circe.Encoder
 import jakarta.persistence.EntityManagerFactory
-import org.mbari.oni.domain.{Concept, ErrorMsg, SerdeConcept}
+import org.mbari.oni.config.PhylogenyConfig
+import org.mbari.oni.domain.{BadRequest, ErrorMsg, NameSuggestion, NameValidation, SerdeConcept}
 import org.mbari.oni.endpoints.CustomTapirJsonCirce.*
-import org.mbari.oni.etc.circe.CirceCodecs.given
-import org.mbari.oni.jdbc.FastPhylogenyService
+import org.mbari.oni.etc.circe.CirceCodecs.{*, given}
+import org.mbari.oni.jdbc.{FastPhylogenyService, PhylogenySnapshot}
+import org.mbari.oni.services.PhylogenyResponseCache
+import sttp.model.HeaderNames
+import sttp.model.headers.ETag
 import sttp.tapir.*
 import sttp.tapir.server.ServerEndpoint
 
+import java.io.{ByteArrayInputStream, InputStream, SequenceInputStream}
+import java.nio.charset.StandardCharsets
 import scala.concurrent.{ExecutionContext, Future}
+import scala.jdk.CollectionConverters.*
 import scala.util.Try
 
-class PhylogenyEndpoints(entityManagerFactory: EntityManagerFactory)(using executionContext: ExecutionContext)
-    extends Endpoints:
+class PhylogenyEndpoints(
+    entityManagerFactory: EntityManagerFactory,
+    config: PhylogenyConfig = PhylogenyConfig.Unscheduled
+)(using
+    executionContext: ExecutionContext
+) extends Endpoints:
+
+    import PhylogenyEndpoints.*
 
     /** This services does caching so we should share it */
-    val service: FastPhylogenyService = FastPhylogenyService(entityManagerFactory)
+    val service: FastPhylogenyService =
+        FastPhylogenyService(entityManagerFactory, config.refreshInterval, config.snapshotFile)
+    private val responseCache         = PhylogenyResponseCache(config.responseCacheMaxBytes, config.responseCacheGzip)
     private val base                  = "phylogeny"
     private val tag                   = "Phylogeny"
 
-    val upEndpoint: Endpoint[Unit, String, ErrorMsg, SerdeConcept, Any] = openEndpoint
-        .get
-        .in(base / "up" / path[String]("name"))
-        .out(jsonBody[SerdeConcept])
-        .name("phylogenyUp")
-        .description("Find the branch from a given concept up to the root")
-        .tag(tag)
+    /**
+     * Request headers of the cached endpoints: Accept-Encoding, used to pick a pre-compressed response, and
+     * If-None-Match
+     */
+    private val cacheHeaders = header[Option[String]](HeaderNames.AcceptEncoding).and(ifNoneMatch)
+
+    private val subtreeLimits: EndpointInput[SubtreeLimits] =
+        query[Option[Int]]("depth")
+            .description("How many levels below the concept to include. 0 returns just the concept")
+            .and(
+                query[Option[Int]]("maxNodes")
+                    .description("The most concepts to return. A concept's children are returned all or none")
+            )
+            .mapTo[SubtreeLimits]
+
+    /**
+     * A JSON response that has already been encoded by the [[PhylogenyResponseCache]]. It is documented as `T` and
+     * sent with a Content-Encoding header when the cached copy is compressed, plus an ETag.
+     */
+    private def encodedJsonBody[T](using schema: Schema[T]): EndpointOutput[CachedOutput] =
+        val codec = Codec
+            .byteArray
+            .format(CodecFormat.Json())
+            .schema(schema.as[Array[Byte]])
+        header[Option[String]](HeaderNames.ContentEncoding)
+            .and(header(HeaderNames.Vary, HeaderNames.AcceptEncoding))
+            .and(EndpointIO.Body(RawBodyType.ByteArrayBody, codec, EndpointIO.Info.empty))
+            .and(etagHeader)
+
+    /** A JSON response documented as `T` that is encoded as the server reads it */
+    private def streamedJsonBody[T](using schema: Schema[T]): EndpointOutput[InputStream] =
+        val codec = Codec
+            .inputStream
+            .format(CodecFormat.Json())
+            .schema(schema.as[InputStream])
+        EndpointIO.Body(RawBodyType.InputStreamBody, codec, EndpointIO.Info.empty)
 
-    val upEndpointImpl: ServerEndpoint[Any, Future] = upEndpoint.serverLogic { name =>
-        handleOptionAsync(service.findUp(name).map(SerdeConcept.from))
+    /**
+     * Serve a phylogeny response from the response cache, computing and encoding it on a miss. The ETag comes from the
+     * snapshot's KB version (see [[PhylogenyResponseCache.tag]]), so if the client's If-None-Match still matches, the
+     * 304 is answered before the response is looked up or encoded.
+     *
+     * The snapshot is read once, before the cache, so that `find` only works in memory: it runs inside the cache's
+     * loader, where a database round-trip would hold up other requests.
+     */
+    private def cachedResponse[A: Encoder](
+        endpoint: String,
+        name: String,
+        accept: Option[String],
+        ifNoneMatch: Option[String]
+    )(find: PhylogenySnapshot => Option[A]): Future[Either[ErrorMsg, CachedOutput]] =
+        Future {
+            val published = service.snapshot()
+            val encoding  = responseCache.encoding(accept)
+            val etag      = ETag(PhylogenyResponseCache.tag(published.kbVersion, encoding))
+            for
+                _     <- conditionally(ifNoneMatch, etag)(())
+                entry <- handleOption(responseCache.get(endpoint, name, published.version)(find(published)))
+            yield (encoding, entry.body(encoding), etag)
+        }
+
+    /** A [[cachedResponse]] for a subtree. Each combination of limits is cached separately. */
+    private def limitedResponse[A: Encoder](
+        endpoint: String,
+        name: String,
+        limits: SubtreeLimits,
+        accept: Option[String],
+        ifNoneMatch: Option[String]
+    )(find: PhylogenySnapshot => Option[A]): Future[Either[ErrorMsg, CachedOutput]] =
+        if !limits.isValid then Future.successful(Left(limits.invalid))
+        else
+            val key = s"$endpoint?depth=${limits.depth}&maxNodes=${limits.maxNodes}"
+            cachedResponse(key, name, accept, ifNoneMatch)(find)
+
+    val upEndpoint: Endpoint[Unit, CachedInput, ErrorMsg, CachedOutput, Any] =
+        openEndpoint
+            .get
+            .in(base / "up" / path[String]("name"))
+            .in(cacheHeaders)
+            .errorOutVariantPrepend(notModifiedVariant)
+            .out(encodedJsonBody[SerdeConcept])
+            .name("phylogenyUp")
+            .description("Find the branch from a given concept up to the root")
+            .tag(tag)
+
+    val upEndpointImpl: ServerEndpoint[Any, Future] = upEndpoint.serverLogic { (name, accept, ifNoneMatch) =>
+        cachedResponse("up", name, accept, ifNoneMatch)(published =>
+            service.findUp(published, name).map(SerdeConcept.from)
+        )
     }
 
-    val downEndpoint: Endpoint[Unit, String, ErrorMsg, SerdeConcept, Any] = openEndpoint
-        .get
-        .in(base / "down" / path[String]("name"))
-        .out(jsonBody[SerdeConcept])
-        .description("Find the branch from the given concept down to the leaves")
-        .tag(tag)
+    val downEndpoint: Endpoint[Unit, LimitedInput, ErrorMsg, CachedOutput, Any] =
+        openEndpoint
+            .get
+            .in(base / "down" / path[String]("name"))
+            .in(subtreeLimits)
+            .in(cacheHeaders)
+            .errorOutVariantPrepend(notModifiedVariant)
+            .out(encodedJsonBody[SerdeConcept])
+            .description(
+                "Find the branch from the given concept down to the leaves. Use depth and maxNodes to fetch a large " +
+                    "branch a level at a time"
+            )
+            .tag(tag)
 
-    val downEndpointImpl: ServerEndpoint[Any, Future] = downEndpoint.serverLogic { name =>
-        handleOptionAsync(service.findDown(name).map(SerdeConcept.from))
+    val downEndpointImpl: ServerEndpoint[Any, Future] = downEndpoint.serverLogic {
+        (name, limits, accept, ifNoneMatch) =>
+            limitedResponse("down", name, limits, accept, ifNoneMatch)(published =>
+                service.findDown(published, name, limits.depth, limits.maxNodes).map(SerdeConcept.from)
+            )
     }
 
     val siblingsEndpoint: Endpoint[Unit, String, ErrorMsg, Seq[SerdeConcept], Any] = openEndpoint
@@ -72,36 +177,229 @@ class PhylogenyEndpoints(entityManagerFactory: EntityManagerFactory)(using execu
         )
     }
 
-    val basicEndpoint: Endpoint[Unit, String, ErrorMsg, Seq[SerdeConcept], Any] =
+    val basicEndpoint: Endpoint[Unit, CachedInput, ErrorMsg, CachedOutput, Any] =
         openEndpoint
             .get
             .in(base / "basic" / path[String]("name"))
-            .out(jsonBody[Seq[SerdeConcept]])
+            .in(cacheHeaders)
+            .errorOutVariantPrepend(notModifiedVariant)
+            .out(encodedJsonBody[Seq[SerdeConcept]])
             .tag(tag)
 
-    val basicEndpointImpl: ServerEndpoint[Any, Future] = basicEndpoint.serverLogic { name =>
-        handleOptionAsync(service.findUp(name).map(c => SerdeConcept.from(c).flatten.map(_.copy(children = None))))
+    val basicEndpointImpl: ServerEndpoint[Any, Future] = basicEndpoint.serverLogic { (name, accept, ifNoneMatch) =>
+        cachedResponse("basic", name, accept, ifNoneMatch)(published =>
+            service.findUp(published, name).map(c => SerdeConcept.from(c).flatten.map(_.copy(children = None)))
+        )
     }
 
-    val taxaEndpoint: Endpoint[Unit, String, ErrorMsg, Seq[SerdeConcept], Any] =
+    val taxaEndpoint: Endpoint[Unit, TaxaInput, ErrorMsg, CachedOutput, Any] =
         openEndpoint
             .get
             .in(base / "taxa" / path[String]("name"))
+            .in(subtreeLimits)
+            .in(
+                query[Option[String]]("rank")
+                    .description(
+                        "Only return concepts of this rank, e.g. species. With a rank, maxNodes keeps the first " +
+                            "concepts by name"
+                    )
+            )
+            .in(cacheHeaders)
+            .errorOutVariantPrepend(notModifiedVariant)
+            .out(encodedJsonBody[Seq[SerdeConcept]])
+            .tag(tag)
+
+    val taxaEndpointImpl: ServerEndpoint[Any, Future] = taxaEndpoint.serverLogic {
+        (name, limits, rank, accept, ifNoneMatch) =>
+            val endpoint = rank.fold("taxa")(r => s"taxa:rank=${r.toLowerCase}")
+            limitedResponse(endpoint, name, limits, accept, ifNoneMatch)(published =>
+                service.findTaxa(published, name, limits.depth, limits.maxNodes, rank).map(_.map(SerdeConcept.from))
+            )
+    }
+
+    val isDescendantEndpoint: Endpoint[Unit, (String, String), ErrorMsg, Boolean, Any] =
+        openEndpoint
+            .get
+            .in(base / "isdescendant" / path[String]("name") / path[String]("ancestor"))
+            .out(jsonBody[Boolean])
+            .name("phylogenyIsDescendant")
+            .description("Check if a concept is the given ancestor or one of its descendants")
+            .tag(tag)
+
+    val isDescendantEndpointImpl: ServerEndpoint[Any, Future] = isDescendantEndpoint.serverLogic { (name, ancestor) =>
+        handleOptionAsync(service.isDescendant(name, ancestor))
+    }
+
+    val lowestCommonAncestorEndpoint: Endpoint[Unit, List[String], ErrorMsg, SerdeConcept, Any] =
+        openEndpoint
+            .get
+            .in(base / "lca")
+            .in(query[List[String]]("name").description("The concept names. Repeat the parameter for each one"))
+            .out(jsonBody[SerdeConcept])
+            .name("phylogenyLowestCommonAncestor")
+            .description(
+                "Find the nearest concept that all of the given concepts descend from. A concept counts as its own " +
+                    "descendant"
+            )
+            .tag(tag)
+
+    val lowestCommonAncestorEndpointImpl: ServerEndpoint[Any, Future] = lowestCommonAncestorEndpoint.serverLogic {
+        names =>
+            if names.isEmpty then Future.successful(Left(BadRequest("At least one name is required")))
+            else handleOptionAsync(service.findLowestCommonAncestor(names).map(SerdeConcept.from))
+    }
+
+    val pathEndpoint: Endpoint[Unit, (String, String), ErrorMsg, Seq[SerdeConcept], Any] =
+        openEndpoint
+            .get
+            .in(base / "path" / path[String]("from") / path[String]("to"))
             .out(jsonBody[Seq[SerdeConcept]])
+            .name("phylogenyPath")
+            .description(
+                "Find the concepts on the way from one concept up to the nearest ancestor they share and back down to " +
+                    "the other"
+            )
+            .tag(tag)
+
+    val pathEndpointImpl: ServerEndpoint[Any, Future] = pathEndpoint.serverLogic { (from, to) =>
+        handleOptionAsync(service.findPath(from, to).map(_.map(SerdeConcept.from)))
+    }
+
+    val autocompleteEndpoint: Endpoint[Unit, (String, Option[Int]), ErrorMsg, Seq[String], Any] =
+        openEndpoint
+            .get
+            .in(base / "autocomplete" / path[String]("prefix"))
+            .in(
+                query[Option[Int]]("limit").description(
+                    s"The most names to return. Default $DefaultAutocompleteLimit, at most $MaxAutocompleteLimit"
+                )
+            )
+            .out(jsonBody[Seq[String]])
+            .name("phylogenyAutocomplete")
+            .description(
+                "Find concept names (primary, alternate or common) that start with the prefix, ignoring case. A name " +
+                    "equal to the prefix comes first, then primary names, then shorter names. Answered from memory"
+            )
             .tag(tag)
 
-    val taxaEndpointImpl: ServerEndpoint[Any, Future] = taxaEndpoint.serverLogic { name =>
-        handleOptionAsync(
-            service
-                .findDown(name)
-                .map(c =>
-                    SerdeConcept
-                        .from(c)
-                        .flatten
-                        .map(_.copy(children = None))
-                        .sortBy(_.name)
+    val autocompleteEndpointImpl: ServerEndpoint[Any, Future] = autocompleteEndpoint.serverLogic { (prefix, limit) =>
+        val n = limit.getOrElse(DefaultAutocompleteLimit)
+        if n < 1 || n > MaxAutocompleteLimit then
+            Future.successful(Left(BadRequest(s"limit must be between 1 and $MaxAutocompleteLimit")))
+        else handleErrorsAsync(Try(service.findNamesStartingWith(prefix, n)).toEither)
+    }
+
+    val suggestEndpoint: Endpoint[Unit, (String, Option[Int], Option[Int]), ErrorMsg, Seq[NameSuggestion], Any] =
+        openEndpoint
+            .get
+            .in(base / "suggest" / path[String]("name"))
+            .in(
+                query[Option[Int]]("limit").description(
+                    s"The most names to return. Default $DefaultSuggestLimit, at most $MaxSuggestLimit"
                 )
-        )
+            )
+            .in(
+                query[Option[Int]]("maxDistance").description(
+                    s"The most edits between the name and a suggestion. Default $DefaultSuggestDistance, at most " +
+                        s"$MaxSuggestDistance"
+                )
+            )
+            .out(jsonBody[Seq[NameSuggestion]])
+            .name("phylogenySuggest")
+            .description(
+                "Suggest concept names (primary, alternate or common) for a name that wasn't found, with their edit " +
+                    "distance from it, ignoring case. Closest first, then primary names. Answered from memory"
+            )
+            .tag(tag)
+
+    val suggestEndpointImpl: ServerEndpoint[Any, Future] = suggestEndpoint.serverLogic { (name, limit, maxDistance) =>
+        val n = limit.getOrElse(DefaultSuggestLimit)
+        val d = maxDistance.getOrElse(DefaultSuggestDistance)
+        if n < 1 || n > MaxSuggestLimit then
+            Future.successful(Left(BadRequest(s"limit must be between 1 and $MaxSuggestLimit")))
+        else if d < 0 || d > MaxSuggestDistance then
+            Future.successful(Left(BadRequest(s"maxDistance must be between 0 and $MaxSuggestDistance")))
+        else handleErrorsAsync(Try(service.suggestNames(name, n, d)).toEither)
+    }
+
+    val upBatchEndpoint: Endpoint[Unit, Seq[String], ErrorMsg, Map[String, SerdeConcept], Any] =
+        openEndpoint
+            .post
+            .in(base / "up")
+            .in(jsonBody[Seq[String]].description("The concept names to look up"))
+            .out(jsonBody[Map[String, SerdeConcept]])
+            .name("phylogenyUpBatch")
+            .description(
+                "Find the branch from each concept up to the root. Names that are not in the KB are left out of the " +
+                    "result"
+            )
+            .tag(tag)
+
+    val upBatchEndpointImpl: ServerEndpoint[Any, Future] = upBatchEndpoint.serverLogic { names =>
+        handleErrorsAsync(Try(service.findUp(names).view.mapValues(SerdeConcept.from).toMap).toEither)
+    }
+
+    val downBatchEndpoint: Endpoint[Unit, (SubtreeLimits, Seq[String]), ErrorMsg, Map[String, SerdeConcept], Any] =
+        openEndpoint
+            .post
+            .in(base / "down")
+            .in(subtreeLimits)
+            .in(jsonBody[Seq[String]].description("The concept names to look up"))
+            .out(jsonBody[Map[String, SerdeConcept]])
+            .name("phylogenyDownBatch")
+            .description(
+                "Find the branch from each concept down to the leaves. Names that are not in the KB are left out of " +
+                    "the result"
+            )
+            .tag(tag)
+
+    val downBatchEndpointImpl: ServerEndpoint[Any, Future] = downBatchEndpoint.serverLogic { (limits, names) =>
+        if !limits.isValid then Future.successful(Left(limits.invalid))
+        else
+            handleErrorsAsync(
+                Try(
+                    service
+                        .findDown(names, limits.depth, limits.maxNodes)
+                        .view
+                        .mapValues(SerdeConcept.from)
+                        .toMap
+                ).toEither
+            )
+    }
+
+    val siblingsBatchEndpoint: Endpoint[Unit, Seq[String], ErrorMsg, Map[String, Seq[SerdeConcept]], Any] =
+        openEndpoint
+            .post
+            .in(base / "siblings")
+            .in(jsonBody[Seq[String]].description("The concept names to look up"))
+            .out(jsonBody[Map[String, Seq[SerdeConcept]]])
+            .name("phylogenySiblingsBatch")
+            .description(
+                "Find the siblings (including itself) of each concept. Names that are not in the KB are left out of " +
+                    "the result"
+            )
+            .tag(tag)
+
+    val siblingsBatchEndpointImpl: ServerEndpoint[Any, Future] = siblingsBatchEndpoint.serverLogic { names =>
+        handleErrorsAsync(Try(service.findSiblings(names).view.mapValues(_.map(SerdeConcept.from)).toMap).toEither)
+    }
+
+    val validateEndpoint: Endpoint[Unit, Seq[String], ErrorMsg, InputStream, Any] =
+        openEndpoint
+            .post
+            .in(base / "validate")
+            .in(jsonBody[Seq[String]].description("The concept names to check"))
+            .out(streamedJsonBody[Seq[NameValidation]])
+            .name("phylogenyValidate")
+            .description(
+                "Check whether each name is in the KB and, if it is, find its concept's primary name and rank. The " +
+                    "results are in the same order as the names and are written out as they are checked, so a " +
+                    "batch of any size can be sent in one request"
+            )
+            .tag(tag)
+
+    val validateEndpointImpl: ServerEndpoint[Any, Future] = validateEndpoint.serverLogic { names =>
+        handleErrorsAsync(Try(jsonArray(service.validateNames(names).map(_.stringify))).toEither)
     }
 
     override def all: List[Endpoint[?, ?, ?, ?, ?]] = List(
@@ -109,7 +407,16 @@ class PhylogenyEndpoints(entityManagerFactory: EntityManagerFactory)(using execu
         downEndpoint,
         siblingsEndpoint,
         basicEndpoint,
-        taxaEndpoint
+        taxaEndpoint,
+        isDescendantEndpoint,
+        lowestCommonAncestorEndpoint,
+        pathEndpoint,
+        autocompleteEndpoint,
+        suggestEndpoint,
+        upBatchEndpoint,
+        downBatchEndpoint,
+        siblingsBatchEndpoint,
+        validateEndpoint
     )
 
     override def allImpl: List[ServerEndpoint[Any, Future]] = List(
@@ -117,5 +424,62 @@ class PhylogenyEndpoints(entityManagerFactory: EntityManagerFactory)(using execu
         downEndpointImpl,
         siblingsEndpointImpl,
         basicEndpointImpl,
-        taxaEndpointImpl
+        taxaEndpointImpl,
+        isDescendantEndpointImpl,
+        lowestCommonAncestorEndpointImpl,
+        pathEndpointImpl,
+        autocompleteEndpointImpl,
+        suggestEndpointImpl,
+        upBatchEndpointImpl,
+        downBatchEndpointImpl,
+        siblingsBatchEndpointImpl,
+        validateEndpointImpl
     )
+
+object PhylogenyEndpoints:
+
+    val DefaultAutocompleteLimit = 10
+    val MaxAutocompleteLimit     = 1000
+    val DefaultSuggestLimit      = 5
+    val MaxSuggestLimit          = 100
+    val DefaultSuggestDistance   = 2
+
+    /** Beyond this a BK-tree search visits most of the tree and the suggestions are rarely useful */
+    val MaxSuggestDistance = 3
+
+    /** The concept name and the Accept-Encoding and If-None-Match headers */
+    type CachedInput = (String, Option[String], Option[String])
+
+    /** The concept name, limits on the subtree and the Accept-Encoding and If-None-Match headers */
+    type LimitedInput = (String, SubtreeLimits, Option[String], Option[String])
+
+    /** A [[LimitedInput]] with an optional rank filter after the limits */
+    type TaxaInput = (String, SubtreeLimits, Option[String], Option[String], Option[String])
+
+    /**
+     * @param depth
+     *   How many levels below the concept to include
+     * @param maxNodes
+     *   The most concepts to include
+     */
+    case class SubtreeLimits(depth: Option[Int] = None, maxNodes: Option[Int] = None):
+
+        def isValid: Boolean = depth.forall(_ >= 0) && maxNodes.forall(_ >= 1)
+
+        def invalid: ErrorMsg = BadRequest("depth must be 0 or more and maxNodes must be 1 or more")
+
+    /** The Content-Encoding, the encoded JSON and its ETag */
+    type CachedOutput = (Option[String], Array[Byte], ETag)
+
+    /**
+     * Joins already-encoded JSON values into a JSON array. The values are consumed a chunk at a time as the stream
+     * is read, so the whole array is never held in memory.
+     */
+    def jsonArray(values: Iterator[String], chunkSize: Int = 256): InputStream =
+        val chunks = values
+            .grouped(chunkSize)
+            .zipWithIndex
+            .map((chunk, i) => (if i == 0 then "" else ",") + chunk.mkString(","))
+        val parts  = Iterator.single("[") ++ chunks ++ Iterator.single("]")
+        val bytes  = parts.map(s => new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)): InputStream)
+        new SequenceInputStream(bytes.asJavaEnumeration)
@@ -133,6 +133,15 @@ object CirceCodecs:
     given Decoder[ConceptMetadata] = deriveDecoder
     given Encoder[ConceptMetadata] = deriveEncoder
 
+    given Decoder[NameValidation] = deriveDecoder
+    given Encoder[NameValidation] = deriveEncoder
+
+    given Decoder[NameSuggestion] = deriveDecoder
+    given Encoder[NameSuggestion] = deriveEncoder
+
+    given Decoder[PhylogenyCacheStatus] = deriveDecoder
+    given Encoder[PhylogenyCacheStatus] = deriveEncoder
+
     given Decoder[HealthStatus] = deriveDecoder
     given Encoder[HealthStatus] = deriveEncoder
 
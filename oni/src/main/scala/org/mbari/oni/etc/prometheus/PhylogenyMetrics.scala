@@ -0,0 +1,52 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.etc.prometheus
+
+import io.prometheus.metrics.core.metrics.GaugeWithCallback
+import io.prometheus.metrics.model.registry.PrometheusRegistry
+import org.mbari.oni.domain.PhylogenyCacheStatus
+import org.mbari.oni.jdbc.FastPhylogenyService
+
+import java.time.{Duration, Instant}
+
+/**
+ * Exposes the freshness of the phylogeny cache as Prometheus gauges. The values are read from the service on each
+ * scrape.
+ */
+object PhylogenyMetrics:
+
+    def register(service: FastPhylogenyService, registry: PrometheusRegistry): Unit =
+        def gauge(name: String, help: String)(value: PhylogenyCacheStatus => Double): Unit =
+            GaugeWithCallback
+                .builder()
+                .name(name)
+                .help(help)
+                .callback(callback => callback.call(value(service.status())))
+                .register(registry)
+
+        gauge("oni_phylogeny_cache_version", "Version of the phylogeny snapshot being served")(_.version.toDouble)
+        gauge("oni_phylogeny_cache_rows", "Concept names in the phylogeny snapshot being served")(_.rowCount.toDouble)
+        gauge("oni_phylogeny_cache_stale", "1 while the database can't be reached and the cache may be out of date")(
+            status => if status.stale then 1 else 0
+        )
+        gauge("oni_phylogeny_cache_refresh_failures", "Consecutive failed attempts to refresh the phylogeny cache")(
+            _.consecutiveFailures.toDouble
+        )
+        gauge(
+            "oni_phylogeny_cache_check_age_seconds",
+            "Seconds since the phylogeny cache was last checked against the database. -1 if it never has been"
+        )(_.lastChecked.fold(-1d)(checked => Duration.between(checked, Instant.now()).toMillis / 1000d))
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.jdbc
+
+import scala.collection.immutable.ArraySeq
+import scala.collection.mutable
+
+/**
+ * A BK-tree over names, for finding the names within an edit (Levenshtein) distance of a misspelling, ignoring case.
+ * Each name hangs off its parent at its distance from the parent. Since the distance is a metric, a search for names
+ * within `maxDistance` of a query that is `d` away from a name only has to descend into the children at distances `d -
+ * maxDistance` to `d + maxDistance`, which skips most of the tree for small distances.
+ *
+ * Stored column-wise like [[CompactTree]]: the first name is the root, and each name's children are a linked list
+ * through `firstChild` and `nextSibling`, with `edges` holding each name's distance from its parent.
+ */
+final class BkTree private (
+    names: IndexedSeq[String],
+    firstChild: Array[Int],
+    nextSibling: Array[Int],
+    edges: Array[Int]
+):
+
+    /**
+     * @return
+     *   The indices (into the names the tree was built from) of the names within `maxDistance` edits of `query`,
+     *   ignoring case, paired with their distance. In no particular order.
+     */
+    def search(query: String, maxDistance: Int): IndexedSeq[(Int, Int)] =
+        if names.isEmpty || maxDistance < 0 then IndexedSeq.empty
+        else
+            val distance = new BkTree.Levenshtein
+            val found    = IndexedSeq.newBuilder[(Int, Int)]
+            val pending  = mutable.Stack(0)
+            while pending.nonEmpty do
+                val node = pending.pop()
+                val d    = distance(query, names(node))
+                if d <= maxDistance then found += node -> d
+                var child = firstChild(node)
+                while child >= 0 do
+                    if math.abs(edges(child) - d) <= maxDistance then pending.push(child)
+                    child = nextSibling(child)
+            found.result()
+
+    def estimatedSizeInBytes: Long = 48L + (firstChild.length + nextSibling.length + edges.length) * 4L
+
+object BkTree:
+
+    def apply(names: IndexedSeq[String]): BkTree =
+        val firstChild  = Array.fill(names.length)(-1)
+        val nextSibling = Array.fill(names.length)(-1)
+        val edges       = new Array[Int](names.length)
+        val distance    = new Levenshtein
+        for i <- 1 until names.length do
+            var node   = 0
+            var placed = false
+            while !placed do
+                val d     = distance(names(i), names(node))
+                var child = firstChild(node)
+                while child >= 0 && edges(child) != d do child = nextSibling(child)
+                if child >= 0 then node = child
+                else
+                    // Names equal ignoring case become children at distance 0, so every name can be found
+                    edges(i) = d
+                    nextSibling(i) = firstChild(node)
+                    firstChild(node) = i
+                    placed = true
+        new BkTree(ArraySeq.from(names), firstChild, nextSibling, edges)
+
+    /**
+     * The Levenshtein distance between two strings, ignoring case, using two rows of the dynamic programming table. The
+     * rows are reused between calls, so an instance must not be shared between threads.
+     */
+    private[jdbc] class Levenshtein:
+
+        private var previous = new Array[Int](32)
+        private var current  = new Array[Int](32)
+
+        def apply(a: String, b: String): Int =
+            if previous.length <= b.length then
+                previous = new Array[Int](b.length + 1)
+                current = new Array[Int](b.length + 1)
+            for j <- 0 to b.length do previous(j) = j
+            for i <- 1 to a.length do
+                val c = TrigramIndex.fold(a.charAt(i - 1))
+                current(0) = i
+                for j <- 1 to b.length do
+                    val substitution = previous(j - 1) + (if c == TrigramIndex.fold(b.charAt(j - 1)) then 0 else 1)
+                    current(j) = math.min(substitution, math.min(previous(j), current(j - 1)) + 1)
+                val row = previous
+                previous = current
+                current = row
+            previous(b.length)
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.jdbc
+
+/**
+ * A set of strings that answers "definitely absent" or "possibly present" using a fixed number of bits per value,
+ * far less memory than the strings themselves. There are no false negatives; the false positive rate is about 1% at
+ * the default 10 bits per value, as long as no more values are added than the filter was sized for.
+ *
+ * @param capacity
+ *   The number of values the filter was sized for
+ * @param count
+ *   The number of values added so far
+ */
+final class BloomFilter private (bits: Array[Long], hashes: Int, val capacity: Int, val count: Int):
+
+    def mightContain(value: String): Boolean =
+        val h1    = BloomFilter.mix(value.hashCode.toLong)
+        val h2    = BloomFilter.mix(h1) | 1L
+        val size  = bits.length.toLong * 64
+        var i     = 0
+        var found = true
+        while found && i < hashes do
+            val bit = java.lang.Math.floorMod(h1 + i * h2, size)
+            found = (bits((bit >>> 6).toInt) & (1L << bit)) != 0
+            i += 1
+        found
+
+    /**
+     * @return
+     *   A copy with more values added. This filter is not modified. Values can't be removed, so a value that is gone
+     *   is still possibly present.
+     */
+    def plus(values: IterableOnce[String]): BloomFilter =
+        val copy  = bits.clone()
+        val added = BloomFilter.add(copy, hashes, values)
+        new BloomFilter(copy, hashes, capacity, count + added)
+
+    /** Whether more values have been added than the filter was sized for, so it has more false positives */
+    def isFull: Boolean = count > capacity
+
+    def estimatedSizeInBytes: Long = 16L + bits.length * 8L
+
+object BloomFilter:
+
+    /**
+     * @param count
+     *   The number of values, used to size the filter
+     */
+    def apply(values: IterableOnce[String], count: Int, bitsPerValue: Int = 10): BloomFilter =
+        val words  = math.max(1L, (count.toLong * bitsPerValue + 63) / 64).toInt
+        val bits   = new Array[Long](words)
+        // k = (m / n) ln 2 minimizes the false positive rate
+        val hashes = math.max(1, math.round(bitsPerValue * math.log(2)).toInt)
+        val added  = add(bits, hashes, values)
+        new BloomFilter(bits, hashes, count, added)
+
+    /** Sets the bits of each value. Returns the number of values. */
+    private def add(bits: Array[Long], hashes: Int, values: IterableOnce[String]): Int =
+        val size  = bits.length.toLong * 64
+        var added = 0
+        for value <- values.iterator do
+            val h1 = mix(value.hashCode.toLong)
+            val h2 = mix(h1) | 1L
+            for i <- 0 until hashes do
+                val bit = java.lang.Math.floorMod(h1 + i * h2, size)
+                bits((bit >>> 6).toInt) |= 1L << bit
+            added += 1
+        added
+
+    /** The MurmurHash3 64-bit finalizer. Spreads String.hashCode over all 64 bits. */
+    private def mix(x: Long): Long =
+        var h = x
+        h ^= h >>> 33
+        h *= 0xff51afd7ed558ccdL
+        h ^= h >>> 33
+        h *= 0xc4ceb9fe1a85ec53L
+        h ^= h >>> 33
+        h
@@ -0,0 +1,770 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.jdbc
+
+import java.io.DataOutput
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.Locale
+import scala.collection.immutable.ArraySeq
+import scala.collection.mutable
+
+/**
+ * The KB tree stored column-wise in primitive arrays, so that a million-name KB fits in tens of megabytes instead of
+ * hundreds. A node is an index in `[0, size)`; every per-node property is an array indexed by it. Children and names
+ * are stored as contiguous runs (CSR layout) addressed by offset arrays. Name and rank strings are shared between
+ * nodes, and ranks are stored as one byte per node.
+ *
+ * Instances are immutable. Build them with [[CompactTree.from]], and a changed copy with [[patch]].
+ *
+ * @param foldedNames
+ *   Name slots sorted ignoring case, for prefix searches. Names that differ only in case keep their `sortedNames`
+ *   order.
+ * @param nameFilter
+ *   Every name, lower-cased, for rejecting unknown names without a search
+ */
+final class CompactTree private (
+    private val ids: Array[Long],
+    private val parents: Array[Int],
+    private val childOffsets: Array[Int],
+    private val childNodes: Array[Int],
+    private val nameOffsets: Array[Int],
+    private val allNames: Array[String],
+    private val nameOwners: Array[Int],
+    private val sortedNames: Array[Int],
+    private val rankCodes: Array[Byte],
+    private val rankNames: Array[String],
+    private val preOrder: Array[Int],
+    private val postOrder: Array[Int],
+    private val foldedNames: Array[Int],
+    private val nameFilter: BloomFilter
+):
+
+    import CompactTree.NoNode
+
+    /** The number of nodes */
+    def size: Int = ids.length
+
+    /** The number of names, across all nodes */
+    def nameCount: Int = allNames.length
+
+    /** The first node without a parent, or [[CompactTree.NoNode]] if the tree is empty */
+    val root: Int = parents.indexWhere(_ == NoNode)
+
+    /**
+     * The nodes of each rank (indexed by rank code - 1) in tree order. The nodes of a subtree are one contiguous run
+     * of each array, found by binary search on the pre-order number.
+     */
+    private val rankedByPosition: Array[Array[Int]] =
+        // Pre- and post-order numbers share one counter, so there are at most 2 * size of them
+        val byPreOrder = Array.fill(2 * size)(NoNode)
+        for node <- 0 until size if preOrder(node) >= 0 do byPreOrder(preOrder(node)) = node
+        groupByRank(byPreOrder.iterator.filter(_ != NoNode))
+
+    /** The nodes of each rank (indexed by rank code - 1) sorted by primary name */
+    private val rankedByName: Array[Array[Int]] =
+        // sortedNames is already in name order; the primary name is the first slot of each node
+        groupByRank(sortedNames.iterator.filter(slot => nameOffsets(nameOwners(slot)) == slot).map(nameOwners))
+
+    /** Built on the first substring search, as many servers never do one */
+    private lazy val trigrams: TrigramIndex = TrigramIndex(ArraySeq.unsafeWrapArray(allNames))
+
+    /** Built on the first suggestion request, like [[trigrams]] */
+    private lazy val bkTree: BkTree = BkTree(ArraySeq.unsafeWrapArray(allNames))
+
+    private def groupByRank(nodes: Iterator[Int]): Array[Array[Int]] =
+        val builders = Array.fill(rankNames.length)(mutable.ArrayBuilder.make[Int])
+        for node <- nodes if rankCodes(node) != 0 do builders((rankCodes(node) & 0xff) - 1) += node
+        builders.map(_.result())
+
+    /**
+     * @return
+     *   The node that uses the name (as its primary or an alternate name), or [[CompactTree.NoNode]]. If a name is
+     *   (incorrectly) shared by more than one node, the first node wins.
+     */
+    def find(name: String): Int =
+        // Lower bound, so that the first of several equal names is found
+        var low  = 0
+        var high = sortedNames.length
+        while low < high do
+            val mid = (low + high) >>> 1
+            if allNames(sortedNames(mid)).compareTo(name) < 0 then low = mid + 1
+            else high = mid
+        if low < sortedNames.length && allNames(sortedNames(low)) == name then nameOwners(sortedNames(low))
+        else NoNode
+
+    /**
+     * @return
+     *   false if no name matches, ignoring case. true if one probably does. Cheaper than [[find]], and errs on the
+     *   side of true.
+     */
+    def mightContainIgnoreCase(name: String): Boolean = nameFilter.mightContain(name.toLowerCase(Locale.ROOT))
+
+    def id(node: Int): Long = ids(node)
+
+    /** The parent node or [[CompactTree.NoNode]] */
+    def parent(node: Int): Int = parents(node)
+
+    def childCount(node: Int): Int = childOffsets(node + 1) - childOffsets(node)
+
+    def children(node: Int): IndexedSeq[Int] =
+        ArraySeq.unsafeWrapArray(childNodes).slice(childOffsets(node), childOffsets(node + 1))
+
+    /** The primary name; the first name if the node has no primary name */
+    def primaryName(node: Int): String =
+        if nameOffsets(node) == nameOffsets(node + 1) then ""
+        else allNames(nameOffsets(node))
+
+    def alternativeNames(node: Int): IndexedSeq[String] =
+        ArraySeq.unsafeWrapArray(allNames).slice(nameOffsets(node) + 1, nameOffsets(node + 1))
+
+    /** All names of the node. The primary name is first. */
+    def names(node: Int): IndexedSeq[String] =
+        ArraySeq.unsafeWrapArray(allNames).slice(nameOffsets(node), nameOffsets(node + 1))
+
+    def rank(node: Int): Option[String] =
+        val code = rankCodes(node) & 0xff
+        if code == 0 then None else Some(rankNames(code - 1))
+
+    /**
+     * @return
+     *   true if `node` is `ancestor` or one of its descendants. Constant time, using the pre- and post-order
+     *   numbering of the nodes. Always false for a node caught in a parent cycle, which isn't in any tree.
+     */
+    def contains(ancestor: Int, node: Int): Boolean =
+        preOrder(ancestor) >= 0 && preOrder(node) >= 0 &&
+            preOrder(ancestor) <= preOrder(node) && postOrder(node) <= postOrder(ancestor)
+
+    /**
+     * @param rank
+     *   The full rank, e.g. "species" or "subfamily". Case-insensitive.
+     * @return
+     *   The node and its descendants that have the rank, sorted by primary name. Answered from the rank index: the
+     *   matching run of nodes is found by binary search and then either sorted, when it is small, or picked out of the
+     *   rank's name-ordered list, when it is large. The rest of the subtree is never visited.
+     */
+    def withRank(ancestor: Int, rank: String): IndexedSeq[Int] =
+        val code = rankNames.indexWhere(_.equalsIgnoreCase(rank))
+        if code < 0 || preOrder(ancestor) < 0 then IndexedSeq.empty
+        else
+            val positions = rankedByPosition(code)
+            // Descendants are numbered after the ancestor's pre-order and before its post-order number
+            val from      = lowerBound(positions, preOrder(ancestor))
+            val until     = lowerBound(positions, postOrder(ancestor))
+            val count     = until - from
+            val byName    = rankedByName(code)
+            val matches   =
+                if count.toLong * (32 - Integer.numberOfLeadingZeros(count)) < byName.length then
+                    positions.slice(from, until).sortBy(primaryName)
+                else byName.filter(contains(ancestor, _))
+            ArraySeq.unsafeWrapArray(matches)
+
+    /**
+     * Autocomplete. Finds the run of names that start with the prefix by binary search on [[foldedNames]], then
+     * keeps the best `limit` of them.
+     *
+     * @param prefix
+     *   Case-insensitive
+     * @return
+     *   Up to `limit` names that start with the prefix, best first: a name equal to the prefix, then primary names
+     *   before alternate names, then shorter names before longer ones, then alphabetically.
+     */
+    def complete(prefix: String, limit: Int): IndexedSeq[String] =
+        def matches(i: Int) =
+            i < foldedNames.length && allNames(foldedNames(i)).regionMatches(true, 0, prefix, 0, prefix.length)
+        var low  = 0
+        var high = foldedNames.length
+        while low < high do
+            val mid = (low + high) >>> 1
+            if String.CASE_INSENSITIVE_ORDER.compare(allNames(foldedNames(mid)), prefix) < 0 then low = mid + 1
+            else high = mid
+        var end  = low
+        while matches(end) do end += 1
+
+        val ranking = completionRanking(prefix)
+        if end - low <= limit then
+            ArraySeq.unsafeWrapArray(foldedNames.slice(low, end).sorted(using ranking).map(allNames))
+        else
+            // A max-heap of the best `limit` seen so far, with the worst of them on top
+            val best = mutable.PriorityQueue.empty[Int](using ranking)
+            for i <- low until end do
+                best.enqueue(foldedNames(i))
+                if best.size > limit then best.dequeue()
+            best.dequeueAll.reverseIterator.map(allNames).toIndexedSeq
+
+    /**
+     * @return
+     *   The nodes with a name (primary, alternate or common) that contains `substring`, ignoring case, sorted by
+     *   primary name. Answered from a trigram index.
+     */
+    def findContaining(substring: String): IndexedSeq[Int] =
+        trigrams.find(substring).map(nameOwners).distinct.sortBy(primaryName)
+
+    /**
+     * "Did you mean" suggestions for a misspelled name, answered from a BK-tree.
+     *
+     * @param maxDistance
+     *   The most edits (insertions, deletions or substitutions of a character, ignoring case) a name may be from `name`
+     * @return
+     *   Up to `limit` names (primary, alternate or common) within `maxDistance` of `name`, with their distance. Closest
+     *   first, then primary names before alternate names, then alphabetically.
+     */
+    def suggest(name: String, limit: Int, maxDistance: Int): IndexedSeq[(String, Int)] =
+        def isPrimary(slot: Int) = nameOffsets(nameOwners(slot)) == slot
+        val ranking: Ordering[(Int, Int)] = (a, b) =>
+            val distance = Integer.compare(a._2, b._2)
+            if distance != 0 then distance
+            else
+                val primary = java.lang.Boolean.compare(!isPrimary(a._1), !isPrimary(b._1))
+                if primary != 0 then primary else allNames(a._1).compareTo(allNames(b._1))
+        bkTree
+            .search(name, maxDistance)
+            .sorted(using ranking)
+            .iterator
+            .map((slot, distance) => (allNames(slot), distance))
+            .distinctBy(_._1)
+            .take(limit)
+            .toIndexedSeq
+
+    private def completionRanking(prefix: String): Ordering[Int] = (a, b) =>
+        def isPrimary(slot: Int) = nameOffsets(nameOwners(slot)) == slot
+        val nameA = allNames(a)
+        val nameB = allNames(b)
+        val exact = java.lang.Boolean.compare(!nameA.equalsIgnoreCase(prefix), !nameB.equalsIgnoreCase(prefix))
+        if exact != 0 then exact
+        else
+            val primary = java.lang.Boolean.compare(!isPrimary(a), !isPrimary(b))
+            if primary != 0 then primary
+            else
+                val length = Integer.compare(nameA.length, nameB.length)
+                if length != 0 then length else nameA.compareTo(nameB)
+
+    /** The index of the first node in `nodes` (sorted by pre-order) whose pre-order number is at least `number` */
+    private def lowerBound(nodes: Array[Int], number: Int): Int =
+        var low  = 0
+        var high = nodes.length
+        while low < high do
+            val mid = (low + high) >>> 1
+            if preOrder(nodes(mid)) < number then low = mid + 1
+            else high = mid
+        low
+
+    /** The number of edges between the node and its root. -1 for a node caught in a parent cycle. */
+    def depth(node: Int): Int = depths(node)
+
+    /**
+     * @return
+     *   The deepest node that contains both nodes, or [[CompactTree.NoNode]] if they are in different trees. Takes
+     *   O(log depth) steps using the [[jumps]] table.
+     */
+    def lowestCommonAncestor(a: Int, b: Int): Int =
+        if depths(a) < 0 || depths(b) < 0 then NoNode
+        else if contains(a, b) then a
+        else if contains(b, a) then b
+        else
+            // Climb from a to the highest ancestor that still doesn't contain b; its parent is the answer
+            var node  = a
+            var level = jumps.length - 1
+            while level >= 0 do
+                val ancestor = jumps(level)(node)
+                if ancestor != NoNode && !contains(ancestor, b) then node = ancestor
+                level -= 1
+            parents(node)
+
+    /**
+     * @return
+     *   The nodes from `from` up to the lowest common ancestor and back down to `to`, both ends included. Empty if
+     *   the nodes are in different trees.
+     */
+    def path(from: Int, to: Int): IndexedSeq[Int] =
+        val ancestor = lowestCommonAncestor(from, to)
+        if ancestor == NoNode then IndexedSeq.empty
+        else
+            def climb(node: Int): List[Int] =
+                Iterator.iterate(node)(parents).takeWhile(_ != ancestor).toList
+            (climb(from) ++ (ancestor :: climb(to).reverse)).toIndexedSeq
+
+    /** Breadth-first from the roots, so parents are numbered before their children. Built on first use. */
+    private lazy val depths: Array[Int] =
+        val depths = Array.fill(size)(-1)
+        val queue  = new Array[Int](size)
+        var head   = 0
+        var tail   = 0
+        for node <- 0 until size if parents(node) == NoNode do
+            depths(node) = 0
+            queue(tail) = node
+            tail += 1
+        while head < tail do
+            val node = queue(head)
+            head += 1
+            for slot <- childOffsets(node) until childOffsets(node + 1) do
+                val child = childNodes(slot)
+                depths(child) = depths(node) + 1
+                queue(tail) = child
+                tail += 1
+        depths
+
+    /**
+     * Binary lifting table: `jumps(k)(node)` is the ancestor 2^k^ levels above the node, or [[CompactTree.NoNode]].
+     * There are only as many levels as the depth of the tree needs, which for a KB is a handful. Built on first use.
+     */
+    private lazy val jumps: Array[Array[Int]] =
+        val maxDepth = depths.foldLeft(0)(math.max)
+        val levels   = math.max(1, 32 - Integer.numberOfLeadingZeros(maxDepth))
+        val jumps    = new Array[Array[Int]](levels)
+        jumps(0) = parents
+        for level <- 1 until levels do
+            val half = jumps(level - 1)
+            jumps(level) = Array.tabulate(size)(node => if half(node) == NoNode then NoNode else half(half(node)))
+        jumps
+
+    /**
+     * A copy with some concepts replaced or removed, for applying a few changes to a large tree. Gives the same tree
+     * as [[CompactTree.from]] over the rows of the other concepts followed by `changed`, except that nodes keep their
+     * order and new nodes are added at the end. Only the changed names are sorted and hashed: they are merged into
+     * the existing name orders and name filter, and every other array is rebuilt in a linear pass.
+     *
+     * @param changed
+     *   Every row of each concept that changed or was added
+     * @param removed
+     *   The ids of concepts that are gone. One that is still the parent of another node is kept without names, as
+     *   [[CompactTree.from]] does for a parent id without rows.
+     */
+    def patch(changed: Seq[ConceptRow], removed: Set[Long]): CompactTree =
+        val rowsById = changed.groupBy(_.id)
+
+        // --- Find the nodes the changes mention in one pass. New ids are added at the end, parents first.
+        val mentioned = (rowsById.keysIterator ++ changed.iterator.flatMap(_.parentId) ++ removed.iterator)
+            .toArray
+            .distinct
+            .sorted
+        val nodeById  = mutable.HashMap.empty[Long, Int]
+        for node <- 0 until size if java.util.Arrays.binarySearch(mentioned, ids(node)) >= 0 do
+            nodeById(ids(node)) = node
+        val addedIds  = mutable.ArrayBuffer.empty[Long]
+        def nodeOf(id: Long): Int =
+            nodeById.getOrElseUpdate(
+                id, {
+                    addedIds += id
+                    size + addedIds.length - 1
+                }
+            )
+        for row <- changed do
+            row.parentId.foreach(nodeOf)
+            nodeOf(row.id)
+        val total = size + addedIds.length
+
+        // --- Parents and ranks of every node, names of the changed ones (null where the names are unchanged)
+        val parentOf   = java.util.Arrays.copyOf(parents, total)
+        java.util.Arrays.fill(parentOf, size, total, NoNode)
+        val rankOf     = java.util.Arrays.copyOf(rankCodes, total)
+        val rankByName = mutable.LinkedHashMap.from(rankNames.iterator.zipWithIndex.map((r, i) => r -> (i + 1).toByte))
+        val namesOf    = new Array[Array[String]](total)
+        for node <- size until total do namesOf(node) = Array.empty
+        for (id, rows) <- rowsById do
+            val node    = nodeById(id)
+            parentOf(node) = rows.last.parentId.map(nodeById).getOrElse(NoNode)
+            rankOf(node) = rows.iterator.flatMap(_.rank).nextOption() match
+                case None       => 0.toByte
+                case Some(rank) =>
+                    rankByName.getOrElseUpdate(
+                        rank, {
+                            require(rankByName.size < 255, "Too many distinct ranks to store as bytes")
+                            (rankByName.size + 1).toByte
+                        }
+                    )
+            val primary = rows.indexWhere(row => CName(row.name, row.nameType).isPrimary)
+            val ordered = if primary < 0 then rows else rows(primary) +: rows.patch(primary, Nil, 1)
+            namesOf(node) = ordered.map(_.name).toArray
+
+        // --- Drop removed nodes, except those still named as a parent
+        val dead     = new Array[Boolean](total)
+        for id <- removed if !rowsById.contains(id) do nodeById.get(id).foreach(dead(_) = true)
+        val isParent = new Array[Boolean](total)
+        for node <- 0 until total if !dead(node) && parentOf(node) != NoNode do isParent(parentOf(node)) = true
+        for node <- 0 until total if dead(node) && isParent(node) do
+            dead(node) = false
+            parentOf(node) = NoNode
+            rankOf(node) = 0
+            namesOf(node) = Array.empty
+
+        // --- Renumber the nodes that are left, in the same order
+        val newNode = Array.fill(total)(NoNode)
+        var n       = 0
+        for node <- 0 until total if !dead(node) do
+            newNode(node) = n
+            n += 1
+        val newIds     = new Array[Long](n)
+        val newParents = new Array[Int](n)
+        val newRanks   = new Array[Byte](n)
+        val nameCounts = new Array[Int](n)
+        for node <- 0 until total if !dead(node) do
+            val i = newNode(node)
+            newIds(i) = if node < size then ids(node) else addedIds(node - size)
+            newParents(i) = if parentOf(node) == NoNode then NoNode else newNode(parentOf(node))
+            newRanks(i) = rankOf(node)
+            nameCounts(i) =
+                if namesOf(node) == null then nameOffsets(node + 1) - nameOffsets(node) else namesOf(node).length
+
+        // --- Names. Unchanged names keep their relative order, so the name orders only need the new names merged in.
+        val newOffsets = CompactTree.offsets(nameCounts)
+        val newNames   = new Array[String](newOffsets(n))
+        val newSlot    = Array.fill(allNames.length)(NoNode)
+        val added      = mutable.ArrayBuilder.make[Int]
+        for node <- 0 until total if !dead(node) do
+            val start = newOffsets(newNode(node))
+            if namesOf(node) == null then
+                for slot <- nameOffsets(node) until nameOffsets(node + 1) do
+                    newSlot(slot) = start + slot - nameOffsets(node)
+                    newNames(newSlot(slot)) = allNames(slot)
+            else
+                for i <- namesOf(node).indices do
+                    newNames(start + i) = namesOf(node)(i)
+                    added += start + i
+        val newOwners  = new Array[Int](newNames.length)
+        for
+            node <- 0 until n
+            slot <- newOffsets(node) until newOffsets(node + 1)
+        do newOwners(slot) = node
+
+        // The orders of sortedNames and foldedNames, with ties broken by slot as their stable sorts do
+        val byName: Ordering[Int]   = (a, b) =>
+            val order = newNames(a).compareTo(newNames(b))
+            if order != 0 then order else Integer.compare(a, b)
+        val byFolded: Ordering[Int] = (a, b) =>
+            val order = String.CASE_INSENSITIVE_ORDER.compare(newNames(a), newNames(b))
+            if order != 0 then order else byName.compare(a, b)
+        val addedSlots = added.result()
+        val newSorted  = CompactTree.merge(CompactTree.remap(sortedNames, newSlot), addedSlots, byName)
+        val newFolded  = CompactTree.merge(CompactTree.remap(foldedNames, newSlot), addedSlots, byFolded)
+        // Removed names stay in the filter, which only makes them possibly present
+        val grown      = nameFilter.plus(addedSlots.iterator.map(newNames(_).toLowerCase(Locale.ROOT)))
+        val newFilter  = if grown.isFull then CompactTree.nameFilterOf(newNames) else grown
+
+        val (newChildOffsets, newChildNodes) = CompactTree.childrenOf(newParents)
+        val (newPreOrder, newPostOrder)      = CompactTree.number(newParents, newChildOffsets, newChildNodes)
+
+        new CompactTree(
+            newIds,
+            newParents,
+            newChildOffsets,
+            newChildNodes,
+            newOffsets,
+            newNames,
+            newOwners,
+            newSorted,
+            newRanks,
+            rankByName.keys.toArray,
+            newPreOrder,
+            newPostOrder,
+            newFolded,
+            newFilter
+        )
+
+    /**
+     * An estimate of the heap used by this tree, computed from the array lengths rather than measured: the arrays
+     * plus the name and rank strings they refer to. Assumes a 64-bit JVM with compressed oops and compact (Latin-1)
+     * strings, and leaves out the indexes that are only built on first use ([[trigrams]], [[bkTree]], [[depths]] and
+     * [[jumps]]).
+     */
+    def estimatedSizeInBytes: Long =
+        def array(length: Int, elementSize: Int): Long = 16L + length.toLong * elementSize
+        def string(s: String): Long                    = 24L + array(s.length, 1)
+        val arrays  = array(ids.length, 8) + array(parents.length, 4) + array(childOffsets.length, 4) +
+            array(childNodes.length, 4) + array(nameOffsets.length, 4) + array(allNames.length, 4) +
+            array(nameOwners.length, 4) + array(sortedNames.length, 4) + array(foldedNames.length, 4) +
+            array(rankCodes.length, 1) + array(rankNames.length, 4) + array(preOrder.length, 4) +
+            array(postOrder.length, 4) +
+            (rankedByPosition ++ rankedByName).map(a => array(a.length, 4)).sum + nameFilter.estimatedSizeInBytes
+        // Identical names are shared, so only count each distinct instance once
+        val seen    = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap[String, java.lang.Boolean])
+        val strings = allNames.iterator.filter(seen.add).map(string).sum + rankNames.iterator.map(string).sum
+        arrays + strings
+
+object CompactTree:
+
+    /** Stands in for a missing node: no parent, or a name that isn't in the tree */
+    val NoNode: Int = -1
+
+    val Empty: CompactTree = from(Nil)
+
+    /**
+     * Build a tree from the rows returned by [[FastPhylogenyDAO.SQL]]. Works like [[MutableConcept.toTree]]: a parent
+     * id without rows of its own still becomes a node, the last row of a concept decides its parent and the first
+     * rank found is kept.
+     */
+    def from(rows: Seq[ConceptRow]): CompactTree =
+        // --- Number the nodes in the order their ids are first seen
+        val indexById = mutable.HashMap.empty[Long, Int]
+        val idBuilder = mutable.ArrayBuilder.make[Long]
+        def indexOf(id: Long): Int =
+            indexById.getOrElseUpdate(
+                id, {
+                    idBuilder += id
+                    indexById.size
+                }
+            )
+        for row <- rows do
+            row.parentId.foreach(indexOf)
+            indexOf(row.id)
+        val ids = idBuilder.result()
+        val n   = ids.length
+
+        // --- Parents, ranks and the number of names of each node
+        val parents    = Array.fill(n)(NoNode)
+        val rankCodes  = new Array[Byte](n)
+        val rankByName = mutable.LinkedHashMap.empty[String, Byte]
+        val nameCounts = new Array[Int](n)
+        for row <- rows do
+            val node = indexById(row.id)
+            parents(node) = row.parentId.map(indexById).getOrElse(NoNode)
+            nameCounts(node) += 1
+            if rankCodes(node) == 0 then
+                row.rank
+                    .foreach(rank =>
+                        rankCodes(node) = rankByName.getOrElseUpdate(
+                            rank, {
+                                // 0 means no rank, so 255 distinct ranks fit in a byte
+                                require(rankByName.size < 255, "Too many distinct ranks to store as bytes")
+                                (rankByName.size + 1).toByte
+                            }
+                        )
+                    )
+
+        // --- Names, with the primary name first. Identical strings are shared.
+        val nameOffsets = offsets(nameCounts)
+        val names       = new Array[String](nameOffsets(n))
+        val interned    = mutable.HashMap.empty[String, String]
+        val hasPrimary  = new Array[Boolean](n)
+        val nextSlot    = new Array[Int](n)
+        for row <- rows do
+            val node = indexById(row.id)
+            if !hasPrimary(node) && CName(row.name, row.nameType).isPrimary then hasPrimary(node) = true
+        for node <- 0 until n do nextSlot(node) = nameOffsets(node) + (if hasPrimary(node) then 1 else 0)
+        val primaryPlaced = new Array[Boolean](n)
+        for row <- rows do
+            val node = indexById(row.id)
+            val name = interned.getOrElseUpdate(row.name, row.name)
+            if hasPrimary(node) && !primaryPlaced(node) && CName(row.name, row.nameType).isPrimary then
+                names(nameOffsets(node)) = name
+                primaryPlaced(node) = true
+            else
+                names(nextSlot(node)) = name
+                nextSlot(node) += 1
+
+        val nameOwners = new Array[Int](names.length)
+        for
+            node <- 0 until n
+            slot <- nameOffsets(node) until nameOffsets(node + 1)
+        do nameOwners(slot) = node
+        // Stable, so the first node wins when a name is used twice
+        val sortedNames = Array.range(0, names.length).sortBy(names(_))
+
+        val (childOffsets, childNodes) = childrenOf(parents)
+        val (preOrder, postOrder)       = number(parents, childOffsets, childNodes)
+
+        new CompactTree(
+            ids,
+            parents,
+            childOffsets,
+            childNodes,
+            nameOffsets,
+            names,
+            nameOwners,
+            sortedNames,
+            rankCodes,
+            rankByName.keys.toArray,
+            preOrder,
+            postOrder,
+            foldedOrder(names, sortedNames),
+            nameFilterOf(names)
+        )
+
+    /**
+     * Write every array of the tree, in constructor order, each prefixed with its length. Big-endian, as
+     * [[java.io.DataOutputStream]] and [[ByteBuffer]] both use by default. Strings are written as a byte count
+     * followed by UTF-8.
+     */
+    private[jdbc] def write(tree: CompactTree, out: DataOutput): Unit =
+        def ints(a: Array[Int]): Unit       =
+            out.writeInt(a.length)
+            a.foreach(out.writeInt)
+        def strings(a: Array[String]): Unit =
+            out.writeInt(a.length)
+            for s <- a do
+                val bytes = s.getBytes(StandardCharsets.UTF_8)
+                out.writeInt(bytes.length)
+                out.write(bytes)
+        out.writeInt(tree.ids.length)
+        tree.ids.foreach(out.writeLong)
+        ints(tree.parents)
+        ints(tree.childOffsets)
+        ints(tree.childNodes)
+        ints(tree.nameOffsets)
+        strings(tree.allNames)
+        ints(tree.nameOwners)
+        ints(tree.sortedNames)
+        out.writeInt(tree.rankCodes.length)
+        out.write(tree.rankCodes)
+        strings(tree.rankNames)
+        ints(tree.preOrder)
+        ints(tree.postOrder)
+
+    /**
+     * Read a tree written by [[write]]. The arrays are bulk-copied out of the buffer, which is typically a memory
+     * mapped file.
+     */
+    private[jdbc] def read(buffer: ByteBuffer): CompactTree =
+        def ints(): Array[Int]       =
+            val a = new Array[Int](buffer.getInt())
+            buffer.asIntBuffer().get(a)
+            buffer.position(buffer.position() + a.length * Integer.BYTES)
+            a
+        def strings(): Array[String] =
+            val interned = mutable.HashMap.empty[String, String]
+            Array.fill(buffer.getInt()) {
+                val bytes = new Array[Byte](buffer.getInt())
+                buffer.get(bytes)
+                val s     = new String(bytes, StandardCharsets.UTF_8)
+                interned.getOrElseUpdate(s, s)
+            }
+        val ids = new Array[Long](buffer.getInt())
+        buffer.asLongBuffer().get(ids)
+        buffer.position(buffer.position() + ids.length * java.lang.Long.BYTES)
+        val parents      = ints()
+        val childOffsets = ints()
+        val childNodes   = ints()
+        val nameOffsets  = ints()
+        val allNames     = strings()
+        val nameOwners   = ints()
+        val sortedNames  = ints()
+        val rankCodes    = new Array[Byte](buffer.getInt())
+        buffer.get(rankCodes)
+        val rankNames = strings()
+        val preOrder  = ints()
+        val postOrder = ints()
+        new CompactTree(
+            ids,
+            parents,
+            childOffsets,
+            childNodes,
+            nameOffsets,
+            allNames,
+            nameOwners,
+            sortedNames,
+            rankCodes,
+            rankNames,
+            preOrder,
+            postOrder,
+            foldedOrder(allNames, sortedNames),
+            nameFilterOf(allNames)
+        )
+
+    /** Name slots sorted ignoring case. Stable, so names that differ only in case keep their `sortedNames` order. */
+    private def foldedOrder(names: Array[String], sortedNames: Array[Int]): Array[Int] =
+        sortedNames.sortBy(names(_))(using Ordering.comparatorToOrdering(String.CASE_INSENSITIVE_ORDER))
+
+    private def nameFilterOf(names: Array[String]): BloomFilter =
+        BloomFilter(names.iterator.map(_.toLowerCase(Locale.ROOT)), names.length)
+
+    /** Each node's children as a contiguous run of `childNodes`, in node order, addressed by `childOffsets` */
+    private def childrenOf(parents: Array[Int]): (Array[Int], Array[Int]) =
+        val n           = parents.length
+        val childCounts = new Array[Int](n)
+        for node <- 0 until n if parents(node) != NoNode do childCounts(parents(node)) += 1
+        val childOffsets = offsets(childCounts)
+        val childNodes   = new Array[Int](childOffsets(n))
+        val nextChild    = childOffsets.clone()
+        for node <- 0 until n if parents(node) != NoNode do
+            val parent = parents(node)
+            childNodes(nextChild(parent)) = node
+            nextChild(parent) += 1
+        (childOffsets, childNodes)
+
+    /**
+     * Merge slots into a sorted array of slots. Only the merged slots are compared: each one's place is found by
+     * binary search and the runs in between are copied as they are.
+     *
+     * @param sorted
+     *   Sorted by `ordering`
+     * @param added
+     *   In any order
+     */
+    private def merge(sorted: Array[Int], added: Array[Int], ordering: Ordering[Int]): Array[Int] =
+        val result = new Array[Int](sorted.length + added.length)
+        var from   = 0
+        var out    = 0
+        for slot <- added.sorted(using ordering) do
+            var low  = from
+            var high = sorted.length
+            while low < high do
+                val mid = (low + high) >>> 1
+                if ordering.compare(sorted(mid), slot) < 0 then low = mid + 1
+                else high = mid
+            System.arraycopy(sorted, from, result, out, low - from)
+            out += low - from
+            result(out) = slot
+            out += 1
+            from = low
+        System.arraycopy(sorted, from, result, out, sorted.length - from)
+        result
+
+    /** The slots that are kept, renumbered, in the same order */
+    private def remap(slots: Array[Int], newSlots: Array[Int]): Array[Int] =
+        val kept = mutable.ArrayBuilder.make[Int]
+        for slot <- slots if newSlots(slot) != NoNode do kept += newSlots(slot)
+        kept.result()
+
+    /** Prefix sums: element i is where the run of node i starts; the last element is the total */
+    private def offsets(counts: Array[Int]): Array[Int] =
+        val offsets = new Array[Int](counts.length + 1)
+        for i <- counts.indices do offsets(i + 1) = offsets(i) + counts(i)
+        offsets
+
+    /**
+     * Walks each tree depth-first, numbering a node once on the way down (pre) and once on the way back up (post).
+     * Iterative so that deep trees can't overflow the stack. Nodes caught in a parent cycle are never reached and
+     * keep -1, which [[CompactTree.contains]] checks for.
+     */
+    private def number(parents: Array[Int], childOffsets: Array[Int], childNodes: Array[Int]): (Array[Int], Array[Int]) =
+        val n         = parents.length
+        val preOrder  = Array.fill(n)(-1)
+        val postOrder = Array.fill(n)(-1)
+        // The node on each level of the walk and the position of the next child to visit
+        val stack     = new Array[Int](n)
+        val cursor    = new Array[Int](n)
+        var counter   = 0
+        for root <- 0 until n if parents(root) == NoNode do
+            var top = 0
+            stack(0) = root
+            cursor(0) = childOffsets(root)
+            preOrder(root) = counter
+            counter += 1
+            while top >= 0 do
+                val node = stack(top)
+                if cursor(top) < childOffsets(node + 1) then
+                    val child = childNodes(cursor(top))
+                    cursor(top) += 1
+                    top += 1
+                    stack(top) = child
+                    cursor(top) = childOffsets(child)
+                    preOrder(child) = counter
+                    counter += 1
+                else
+                    postOrder(node) = counter
+                    counter += 1
+                    top -= 1
+        (preOrder, postOrder)
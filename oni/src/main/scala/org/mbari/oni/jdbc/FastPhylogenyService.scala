@@ -17,133 +17,703 @@
 package org.mbari.oni.jdbc
 
 import jakarta.persistence.EntityManagerFactory
-import org.mbari.oni.domain.{Concept, SimpleConcept}
+import org.mbari.oni.domain.{Concept, NameSuggestion, NameValidation, PhylogenyCacheStatus, SimpleConcept}
 import org.mbari.oni.etc.jdk.Loggers.given
-import org.mbari.oni.etc.jdk.{JdbcTypes, Loggers}
+import org.mbari.oni.etc.jdk.Loggers
 import org.mbari.oni.jpa.EntityManagerFactories.*
 
-import java.time.Instant
+import java.nio.file.{Files, Path}
+import java.sql.Timestamp
+import java.time.{Duration, Instant}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicReference}
 import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.{ExecutorService, Executors, ScheduledExecutorService, TimeUnit}
 import scala.collection.immutable.ArraySeq
+import scala.util.control.NonFatal
 
 /**
+ * An in-memory cache of the KB tree.
+ *
+ * When `refreshInterval` is positive a background thread polls the database for changes at that interval and
+ * requests are served entirely from memory. When it is zero (the default) the database is checked for changes on
+ * every request, which is mostly useful for tests and tools that need to see their own writes immediately.
+ *
+ * When polling and `snapshotFile` is set, the cache is written to that file whenever it changes and read back when
+ * the service starts, so a restarted server can answer requests right away instead of waiting for the full KB query.
+ * The restored cache is checked against the database by the first poll and reloaded if it doesn't match.
+ *
+ * After the first load only the concepts that changed are read again and patched into the tree. On Postgres they,
+ * and the deleted ones, are taken from the kb_change log, which is stamped in commit order. Elsewhere they are found
+ * by LAST_UPDATED_TIME, which is stamped when a row is written rather than when it commits, so rows are re-read from
+ * [[FastPhylogenyService.ChangeOverlap]] before the newest time already seen. Deletes leave no timestamp, so there
+ * every concept id and the number of names are read too, and the whole tree is reloaded every
+ * [[FastPhylogenyService.FullReloadInterval]] to pick up anything those checks miss.
+ *
  * @author
  *   Brian Schlining
  * @since 2018-02-11T11:19:00
  */
-class FastPhylogenyService(entityManagerFactory: EntityManagerFactory):
+class FastPhylogenyService(
+    entityManagerFactory: EntityManagerFactory,
+    refreshInterval: Duration = Duration.ZERO,
+    snapshotFile: Option[Path] = None
+) extends AutoCloseable:
 
     private val log = Loggers(getClass)
 
-    private var lastUpdate                       = Instant.EPOCH
-    private var rootNode: Option[MutableConcept] = None
-    private var allNodes: Seq[MutableConcept]    = Nil
-    private val lock                             = new ReentrantLock();
-
-    def findUp(name: String): Option[Concept] =
-        load()
-        // Hide the children
-        //  do branch walk
-        findMutableNode(name)
-            .map(_.copyUp())
-            .map(_.root())
-            .map(_.toImmutable)
-
-    def findDown(name: String): Option[Concept] =
-        load()
-        // Parent is't seen so we can walk down from this node
-        val mc = findMutableNode(name)
-        mc.map(_.toImmutable)
+    private val polling = !(refreshInterval.isZero || refreshInterval.isNegative)
+
+    /** Where to persist the cache. Only used when polling; otherwise every request checks the database anyway. */
+    private val persistedAt = snapshotFile.filter(_ => polling)
+
+    /** Identifies the database in the persisted file, so a file written against another database is never served */
+    private lazy val source =
+        Option(entityManagerFactory.getProperties.get("jakarta.persistence.jdbc.url")).map(_.toString).getOrElse("")
+
+    /** Whether the database keeps the kb_change log (see V1.0.4__kb_change.sql) */
+    private lazy val changeLog = source.startsWith("jdbc:postgresql:")
+
+    /** The currently published cache. It is only ever replaced as a whole, never modified in place. */
+    private val current = new AtomicReference[PhylogenySnapshot](PhylogenySnapshot.Empty)
+
+    /** Serializes reloads. Readers never take this lock unless the cache has never been loaded. */
+    private val lock = new ReentrantLock()
+
+    /** Set while the published snapshot was read from disk and hasn't been checked against the database yet */
+    private val unverified = new AtomicBoolean(false)
+
+    /** When the tree was last read in full, or restored from disk */
+    private val lastFullLoad = new AtomicReference(Instant.EPOCH)
+
+    /** The outcome of the latest attempts to reach the database */
+    private val state = new AtomicReference(FastPhylogenyService.RefreshState(None, 0, Instant.EPOCH))
+
+    /** How long to wait before retrying after the first failure. Doubled for each further failure. */
+    private val retryBase = if polling then refreshInterval else Duration.ofSeconds(1)
+
+    /** The latest snapshot waiting to be saved. Null once the writer has picked it up. */
+    private val pendingWrite = new AtomicReference[PhylogenySnapshot](null)
+
+    /** Saves snapshots off the reload lock, one at a time */
+    private val writer: Option[ExecutorService] =
+        persistedAt.map(_ =>
+            Executors.newSingleThreadExecutor(runnable =>
+                val thread = new Thread(runnable, "phylogeny-snapshot-writer")
+                thread.setDaemon(true)
+                thread
+            )
+        )
+
+    // Before the scheduler starts, so the first poll verifies the restored snapshot
+    persistedAt.foreach(restore)
+
+    private val scheduler: Option[ScheduledExecutorService] =
+        if !polling then None
+        else
+            val executor = Executors.newSingleThreadScheduledExecutor(runnable =>
+                val thread = new Thread(runnable, "phylogeny-refresh")
+                thread.setDaemon(true)
+                thread
+            )
+            // Fixed delay, not fixed rate, so a slow reload never overlaps the next poll
+            executor.scheduleWithFixedDelay(
+                () => poll(),
+                0,
+                refreshInterval.toMillis,
+                TimeUnit.MILLISECONDS
+            )
+            log.atInfo.log(s"Polling for KB changes every $refreshInterval")
+            Some(executor)
+
+    def findUp(name: String): Option[Concept] = findUp(snapshot(), name)
+
+    /** [[findUp]] answered from a snapshot the caller already holds, without checking it for freshness */
+    def findUp(published: PhylogenySnapshot, name: String): Option[Concept] =
+        published.findNode(name).map(published.branch)
+
+    /**
+     * @param maxDepth
+     *   How many levels below the concept to include. None for all of them.
+     * @param maxNodes
+     *   The most concepts to include. None for no limit. See [[PhylogenySnapshot.subtree]] for how the tree is cut.
+     */
+    def findDown(name: String, maxDepth: Option[Int] = None, maxNodes: Option[Int] = None): Option[Concept] =
+        findDown(snapshot(), name, maxDepth, maxNodes)
+
+    /** [[findDown]] answered from a snapshot the caller already holds, like the matching `findUp` */
+    def findDown(
+        published: PhylogenySnapshot,
+        name: String,
+        maxDepth: Option[Int],
+        maxNodes: Option[Int]
+    ): Option[Concept] =
+        published.findNode(name).map(published.subtree(_, maxDepth, maxNodes))
+
+    /**
+     * @param rank
+     *   Only return concepts with this rank (e.g. "species"), answered from the rank index. With a rank, maxNodes
+     *   keeps the first concepts by name rather than cutting the tree breadth-first.
+     * @return
+     *   The concept and its descendants (within the same limits as [[findDown]]) as a flat list, without children,
+     *   sorted by name. None if the name is not in the KB.
+     */
+    def findTaxa(
+        name: String,
+        maxDepth: Option[Int] = None,
+        maxNodes: Option[Int] = None,
+        rank: Option[String] = None
+    ): Option[Seq[Concept]] =
+        findTaxa(snapshot(), name, maxDepth, maxNodes, rank)
+
+    /** [[findTaxa]] answered from a snapshot the caller already holds, like the matching `findUp` */
+    def findTaxa(
+        published: PhylogenySnapshot,
+        name: String,
+        maxDepth: Option[Int],
+        maxNodes: Option[Int],
+        rank: Option[String]
+    ): Option[Seq[Concept]] =
+        published
+            .findNode(name)
+            .map(node =>
+                rank match
+                    case Some(r) => published.flatSubtree(node, r, maxDepth, maxNodes)
+                    case None    => published.flatSubtree(node, maxDepth, maxNodes)
+            )
 
     def findSiblings(name: String): Seq[SimpleConcept] =
-        load()
-        findMutableNode(name)
-            .flatMap(n => n.parent.map(p => p.children.map(SimpleConcept.from)))
-            .getOrElse(Nil)
+        siblingsOf(snapshot(), name).getOrElse(Nil)
+
+    /**
+     * [[findUp]] for many names at once. All of them are answered from the same snapshot, which is checked for
+     * freshness once. Names that aren't in the KB are left out of the result.
+     */
+    def findUp(names: Seq[String]): Map[String, Concept] =
+        val published = snapshot()
+        names.flatMap(name => published.findNode(name).map(node => name -> published.branch(node))).toMap
+
+    /** [[findDown]] for many names at once. Answered from one snapshot, like the batch `findUp`. */
+    def findDown(names: Seq[String], maxDepth: Option[Int], maxNodes: Option[Int]): Map[String, Concept] =
+        val published = snapshot()
+        names
+            .flatMap(name => published.findNode(name).map(node => name -> published.subtree(node, maxDepth, maxNodes)))
+            .toMap
+
+    /** [[findSiblings]] for many names at once. Answered from one snapshot, like the batch `findUp`. */
+    def findSiblings(names: Seq[String]): Map[String, Seq[SimpleConcept]] =
+        val published = snapshot()
+        names.flatMap(name => siblingsOf(published, name).map(name -> _)).toMap
+
+    /**
+     * Autocomplete concept names from the cache. See [[CompactTree.complete]] for how matches are ranked.
+     *
+     * @param prefix
+     *   Case-insensitive
+     * @return
+     *   Up to `limit` names (primary, alternate or common) that start with the prefix, best first
+     */
+    def findNamesStartingWith(prefix: String, limit: Int): Seq[String] =
+        snapshot().tree.complete(prefix, limit)
+
+    /**
+     * Substring search from the cache, using a trigram index that is rebuilt with each snapshot
+     *
+     * @return
+     *   The ids of the concepts that have a name containing `substring`, ignoring case, sorted by primary name
+     */
+    def findIdsContaining(substring: String): Seq[Long] =
+        val tree = snapshot().tree
+        tree.findContaining(substring).map(tree.id)
+
+    /** Like [[findIdsContaining]] but returns the concepts' primary names */
+    def findNamesContaining(substring: String): Seq[String] =
+        val tree = snapshot().tree
+        tree.findContaining(substring).map(tree.primaryName)
+
+    /**
+     * Suggest names for one that wasn't found, e.g. after a 404. The BK-tree behind it is rebuilt with each snapshot.
+     *
+     * @param maxDistance
+     *   The most single-character edits, ignoring case, between `name` and a suggestion
+     * @return
+     *   Up to `limit` names, closest first
+     */
+    def suggestNames(name: String, limit: Int, maxDistance: Int): Seq[NameSuggestion] =
+        snapshot().suggest(name, limit, maxDistance)
+
+    /**
+     * @return
+     *   The ids of the named concept, its parent and its children, as the cache knows them. Empty if the name isn't
+     *   in the cache.
+     */
+    def findFamilyIds(name: String): Seq[Long] =
+        val tree = snapshot().tree
+        val node = tree.find(name)
+        if node == CompactTree.NoNode then Nil
+        else (node +: tree.children(node) :+ tree.parent(node)).filter(_ != CompactTree.NoNode).map(tree.id)
 
-    private def findMutableNode(name: String): Option[MutableConcept] =
-        allNodes.find(_.names.map(_.name).contains(name))
+    /**
+     * Check many names at once, e.g. to map free-text labels to canonical primary names. Answered from one
+     * snapshot, lazily, so that a large batch can be written out as it is checked.
+     *
+     * @return
+     *   One result per name, in the same order
+     */
+    def validateNames(names: IterableOnce[String]): Iterator[NameValidation] =
+        val published = snapshot()
+        names.iterator.map(published.validate)
+
+    private def siblingsOf(published: PhylogenySnapshot, name: String): Option[Seq[SimpleConcept]] =
+        published.findNode(name).map(published.siblings)
+
+    /**
+     * @return
+     *   The nearest concept that all of the named concepts descend from (a concept counts as descending from itself).
+     *   None if any name is not in the KB, or no names are given.
+     */
+    def findLowestCommonAncestor(names: Seq[String]): Option[SimpleConcept] =
+        val published = snapshot()
+        val nodes     = names.map(published.findNode)
+        if nodes.exists(_.isEmpty) then None
+        else published.lowestCommonAncestor(nodes.flatten).map(published.simple)
+
+    /**
+     * @return
+     *   The concepts on the way from one concept up to the nearest ancestor they share and back down to the other,
+     *   both ends included. None if either name is not in the KB.
+     */
+    def findPath(from: String, to: String): Option[Seq[SimpleConcept]] =
+        val published = snapshot()
+        for
+            fromNode <- published.findNode(from)
+            toNode   <- published.findNode(to)
+            path     <- Option(published.path(fromNode, toNode)).filter(_.nonEmpty)
+        yield path
 
     def findDescendantNames(name: String): Seq[String] =
-        load()
-        findMutableNode(name)
-            .map(_.toImmutable.descendantNames)
+        findDown(name)
+            .map(_.descendantNames)
             .getOrElse(Nil)
 
     def findDescendantNamesAsJava(name: String): java.util.List[String] =
         import scala.jdk.CollectionConverters.*
         findDescendantNames(name).asJava
 
-    private def load(): Unit =
-        val lastUpdateInDb = findLastUpdate()
-        if lastUpdateInDb.isAfter(lastUpdate) then
-
-            lock.lock()
-            log.atDebug.log("Loading cache ...")
-            try
-                val cache = executeQuery()
-                if cache.nonEmpty then
-                    val lu = cache.maxBy(_.lastUpdate.toEpochMilli)
-                    lastUpdate = lu.lastUpdate
-
-                val r = MutableConcept.toTree(cache)
-                rootNode = r._1
-                allNodes = r._2
-            finally lock.unlock()
-
-    def findLastUpdate(): Instant =
-        val attempt = entityManagerFactory.transaction(entityManager =>
-            val query = entityManager.createNativeQuery(FastPhylogenyDAO.LAST_UPDATE_SQL)
-            JdbcTypes.instantConverter(query.getSingleResult()) match
-                case Some(instant) => instant
-                case None          =>
-                    log.atWarn
-                        .log(
-                            "Unexpected type for last update timestamp. Expected Instant, got: " + query
-                                .getSingleResult
-                                .getClass
-                                .getName
-                        )
-                    Instant.now()
+    /**
+     * Checks whether one concept is in the subtree of another without walking the tree.
+     *
+     * @param name
+     *   The concept to check
+     * @param ancestorName
+     *   The concept at the top of the subtree
+     * @return
+     *   None if either name is not in the KB. Otherwise true if `name` is `ancestorName` or one of its descendants.
+     */
+    def isDescendant(name: String, ancestorName: String): Option[Boolean] =
+        snapshot().isDescendant(name, ancestorName)
+
+    /**
+     * A fast negative check for callers that would otherwise query the database for a name. Never touches the
+     * database once the cache has been loaded, when polling.
+     *
+     * @param kbVersion
+     *   The KB version the answer must be at least as new as, e.g. the newest one the caller has been told of
+     * @return
+     *   true only if the name is definitely not in the KB, ignoring case. false if it may be, or if the cache can't
+     *   vouch for it: it hasn't been loaded, is older than `kbVersion`, was restored from disk and not yet verified,
+     *   or the database can't be reached.
+     */
+    def isUnknownName(name: String, kbVersion: Long): Boolean =
+        val published = snapshot()
+        !published.isEmpty && published.kbVersion >= kbVersion && !unverified.get() && state.get().failures == 0 &&
+        !published.tree.mightContainIgnoreCase(name)
+
+    /** The KB version of the published snapshot, without touching the database. 0 until the cache is loaded. */
+    def publishedKbVersion: Long = current.get().kbVersion
+
+    /**
+     * @return
+     *   How fresh the published snapshot is, without touching the database
+     */
+    def status(): PhylogenyCacheStatus =
+        val published = current.get()
+        val health    = state.get()
+        PhylogenyCacheStatus(
+            version = published.version,
+            rowCount = published.rowCount,
+            lastUpdate = published.lastUpdate,
+            kbVersion = published.kbVersion,
+            lastChecked = health.lastChecked,
+            stale = health.failures > 0,
+            consecutiveFailures = health.failures,
+            retryAt = Option.when(health.failures > 0)(health.retryAt)
         )
-        attempt match
-            case Right(result)   => result
-            case Left(exception) =>
-                log.atError.withCause(exception).log("Failed to execute last update query")
-                Instant.now()
-
-    private def executeQuery(): Seq[ConceptRow] =
-        val attempt = entityManagerFactory.transaction(entityManager =>
-            val query = entityManager.createNativeQuery(FastPhylogenyDAO.SQL)
-            query.getResultList
+
+    /**
+     * @return
+     *   The snapshot a request should be served from. When polling, this never touches the database once the cache
+     *   has been loaded. Otherwise it checks the database for changes, so a caller that needs both the version and
+     *   some query results should read the snapshot once and pass it to the methods that take one.
+     */
+    def snapshot(): PhylogenySnapshot =
+        val published = current.get()
+        if scheduler.isEmpty || (published eq PhylogenySnapshot.Empty) then refresh()
+        else published
+
+    /**
+     * Reload the cache if the database has changed since the current snapshot was built. Changes, deletions
+     * included, are detected by reading the KB version counter, which database triggers bump on every write to the
+     * KB tables. Without the kb_change log the whole tree is also reloaded once a full reload is due, changed or not.
+     * Only one reload runs at a time; if another thread is already reloading, the current snapshot is returned
+     * without waiting for the new one.
+     *
+     * If the database can't be reached the current snapshot is kept and served as is. Further attempts are skipped
+     * until a retry time that backs off exponentially with each consecutive failure.
+     *
+     * @return
+     *   The currently published snapshot
+     */
+    def refresh(): PhylogenySnapshot =
+        if Instant.now().isBefore(state.get().retryAt) then current.get()
+        else
+            findKbVersion() match
+                case Left(exception)      => failed(exception, "check the KB for changes")
+                case Right(kbVersionInDb) =>
+                    if kbVersionInDb == current.get().kbVersion && !fullReloadDue() then succeeded()
+                    else if lock.tryLock() then
+                        try
+                            // Another thread may have published a fresh snapshot while we were checking
+                            val snapshot = current.get()
+                            if kbVersionInDb != snapshot.kbVersion || fullReloadDue() then
+                                val next =
+                                    if (snapshot eq PhylogenySnapshot.Empty) || fullReloadDue() then loadAll(snapshot)
+                                    else loadChanges(snapshot, kbVersionInDb)
+                                next match
+                                    case Right(loaded)   =>
+                                        // The version was read first, so rows written since are only ever reloaded
+                                        publish(snapshot, loaded.copy(kbVersion = kbVersionInDb))
+                                        succeeded()
+                                    case Left(exception) => failed(exception, "reload the phylogeny cache")
+                            else succeeded()
+                        finally lock.unlock()
+                    else if current.get() eq PhylogenySnapshot.Empty then
+                        // Nothing to serve yet, so wait for the initial load to finish
+                        lock.lock()
+                        lock.unlock()
+            current.get()
+
+    /** Deltas found by LAST_UPDATED_TIME can miss a late commit, so they are only trusted for so long */
+    private def fullReloadDue(): Boolean =
+        !changeLog && !Instant.now().isBefore(lastFullLoad.get().plus(FastPhylogenyService.FullReloadInterval))
+
+    private def succeeded(): Unit =
+        val previous = state.getAndSet(FastPhylogenyService.RefreshState(Some(Instant.now()), 0, Instant.EPOCH))
+        if previous.failures > 0 then
+            log.atInfo.log(s"Reconnected to the database after ${previous.failures} failed phylogeny refreshes")
+
+    private def failed(exception: Throwable, action: String): Unit =
+        val now    = Instant.now()
+        val health = state.updateAndGet(previous =>
+            val failures = previous.failures + 1
+            previous.copy(failures = failures, retryAt = now.plus(FastPhylogenyService.retryDelay(retryBase, failures)))
         )
+        log.atWarn
+            .withCause(exception)
+            .log(
+                s"Failed to $action (${health.failures} in a row). Serving the cached KB from " +
+                    s"${current.get().lastUpdate} and retrying after ${health.retryAt}"
+            )
+
+    /**
+     * Must be called while holding the lock. If only the KB version changed (e.g. a media or link was edited) the
+     * tree is kept and so is the snapshot version, so nothing keyed by it is invalidated, and the saved file is left
+     * as it is; the KB version it records is then behind, which only costs a check for changes after a restart.
+     */
+    private def publish(previous: PhylogenySnapshot, next: PhylogenySnapshot): Unit =
+        if next ne previous then
+            val treeChanged = next.tree ne previous.tree
+            val version     = if treeChanged then previous.version + 1 else previous.version
+            val published   = next.copy(version = version)
+            current.set(published)
+            if treeChanged then save(published)
+
+    /**
+     * Hand the snapshot to the writer thread. A snapshot that is still waiting when a newer one is published is
+     * dropped, so a burst of changes is saved once.
+     */
+    private def save(snapshot: PhylogenySnapshot): Unit =
+        for
+            path     <- persistedAt
+            executor <- writer
+        do
+            if pendingWrite.getAndSet(snapshot) == null && !executor.isShutdown then
+                executor.execute(() =>
+                    val latest = pendingWrite.getAndSet(null)
+                    PhylogenySnapshotFile.write(latest, source, path) match
+                        case Right(_)        => log.atDebug.log(s"Saved the phylogeny cache to $path")
+                        case Left(exception) =>
+                            log.atWarn.withCause(exception).log(s"Failed to save the phylogeny cache to $path")
+                )
+
+    private def restore(path: Path): Unit =
+        if Files.exists(path) then
+            PhylogenySnapshotFile.read(path, source) match
+                case Right(restored) =>
+                    current.set(restored.copy(version = 1))
+                    lastFullLoad.set(Instant.now())
+                    unverified.set(true)
+                    log.atInfo.log(s"Restored ${restored.rowCount} phylogeny rows from $path")
+                case Left(exception) =>
+                    log.atWarn.withCause(exception).log(s"Ignoring the phylogeny cache saved at $path")
+
+    /**
+     * Check a snapshot restored from disk against the database. If the database has moved on, the following refresh
+     * patches in the changes as usual. But if the database's KB version is older (e.g. it was restored from a
+     * backup) or the same but with a different number of names, the snapshot is replaced with a full reload. If the
+     * database can't be reached, the restored snapshot stays unverified and is checked again by the next poll.
+     */
+    private def verify(): Unit =
+        val restored = current.get()
+        val attempt  =
+            for
+                kbVersionInDb <- findKbVersion()
+                rowCount      <- findRowCount()
+            yield (kbVersionInDb, rowCount)
         attempt match
-            case Right(results) =>
-                for result <- ArraySeq.unsafeWrapArray(results.toArray)
-                yield
-                    val row                  = result.asInstanceOf[Array[Object]]
-                    val id                   = row(0).asLong.getOrElse(-1L)
-                    val parentId             = row(1).asLong
-                    val name                 = row(2).asString.orNull
-                    val rankLevel            = row(3).asString
-                    val rankName             = row(4).asString
-                    val nameType             = row(5).asString.orNull
-                    val conceptTimestamp     = row(6).asInstant.getOrElse(Instant.now())
-                    val conceptNameTimestamp = row(7).asInstant.getOrElse(Instant.now())
-                    ConceptRow(
-                        id,
-                        parentId,
-                        name,
-                        rankLevel,
-                        rankName,
-                        nameType,
-                        conceptTimestamp,
-                        conceptNameTimestamp
-                    )
-
-            case Left(exception) =>
-                log.atError.withCause(exception).log("Failed to execute query")
-                Nil
+            case Right((kbVersionInDb, rowCount)) =>
+                val older       = kbVersionInDb < restored.kbVersion
+                val sameVersion = kbVersionInDb == restored.kbVersion
+                if older || (sameVersion && !rowCount.contains(restored.rowCount.toLong)) then
+                    log.atInfo.log("The restored phylogeny cache doesn't match the database. Doing a full reload")
+                    lock.lock()
+                    try
+                        loadAll(PhylogenySnapshot.Empty) match
+                            case Right(loaded)   =>
+                                publish(current.get(), loaded.copy(kbVersion = kbVersionInDb))
+                                unverified.set(false)
+                            case Left(exception) => failed(exception, "reload the restored phylogeny cache")
+                    finally lock.unlock()
+                else unverified.set(false)
+            case Left(exception)                  => failed(exception, "verify the restored phylogeny cache")
+
+    private def poll(): Unit =
+        try
+            if unverified.get() && !Instant.now().isBefore(state.get().retryAt) then verify()
+            refresh()
+        catch
+            // An exception would cancel all future polls
+            case NonFatal(e) => log.atError.withCause(e).log("Failed to refresh the phylogeny cache")
+
+    override def close(): Unit =
+        scheduler.foreach(_.shutdownNow())
+        // Not shutdownNow, so a save in progress isn't interrupted
+        writer.foreach(_.shutdown())
+
+    /**
+     * @return
+     *   The KB version counter. A single primary key read.
+     */
+    def findKbVersion(): Either[Throwable, Long] =
+        entityManagerFactory
+            .transaction(entityManager =>
+                entityManager.createNativeQuery(FastPhylogenyDAO.KB_VERSION_SQL).getSingleResult.asLong
+            )
+            .flatMap(_.toRight(new IllegalStateException("The kb_version table has no row")))
+
+    /**
+     * The concepts touched by the KB versions after `afterVersion`, up to and including `toVersion`. Postgres only, as
+     * the kb_change log is kept by Postgres triggers.
+     */
+    def findKbChanges(afterVersion: Long, toVersion: Long): Either[Throwable, Seq[KbChange]] =
+        entityManagerFactory.transaction(entityManager =>
+            val results = entityManager
+                .createNativeQuery(FastPhylogenyDAO.KB_CHANGES_SQL)
+                .setParameter(1, afterVersion)
+                .setParameter(2, toVersion)
+                .getResultList
+            for result <- ArraySeq.unsafeWrapArray(results.toArray)
+            yield
+                val row = result.asInstanceOf[Array[Object]]
+                KbChange(row(0).asLong, row(1) == java.lang.Boolean.TRUE)
+        )
+
+    private def findRowCount(): Either[Throwable, Option[Long]] =
+        entityManagerFactory.transaction(entityManager =>
+            entityManager.createNativeQuery(FastPhylogenyDAO.ROW_COUNT_SQL).getSingleResult.asLong
+        )
+
+    private def loadAll(snapshot: PhylogenySnapshot): Either[Throwable, PhylogenySnapshot] =
+        log.atDebug.log("Loading cache ...")
+        val started = Instant.now()
+        executeQuery().map(rows =>
+            lastFullLoad.set(started)
+            PhylogenySnapshot.from(rows, snapshot.lastUpdate)
+        )
+
+    /**
+     * Fetch only the concepts that changed since the snapshot was built and patch them into a new snapshot. Falls
+     * back to a full reload when the changes can't be patched in: the kb_change log no longer reaches back to the
+     * snapshot's KB version, or (without the log) the patched snapshot doesn't account for every name in the database.
+     *
+     * @param kbVersionInDb
+     *   The KB version read before calling this. Changes logged after it are left for the next refresh.
+     */
+    private def loadChanges(snapshot: PhylogenySnapshot, kbVersionInDb: Long): Either[Throwable, PhylogenySnapshot] =
+        val attempt = if changeLog then loadLoggedChanges(snapshot, kbVersionInDb) else loadChangesSince(snapshot)
+        attempt.flatMap {
+            case Some(patched) => Right(patched)
+            case None          =>
+                log.atDebug.log("Changes could not be patched into the cache. Doing a full reload")
+                loadAll(snapshot)
+        }
+
+    /**
+     * Postgres. The kb_change log names every concept whose names or parent changed, including deleted ones, so
+     * neither the concept ids nor the rows of the whole KB are read.
+     *
+     * @return
+     *   None if the log doesn't cover the changes
+     */
+    private def loadLoggedChanges(
+        snapshot: PhylogenySnapshot,
+        kbVersionInDb: Long
+    ): Either[Throwable, Option[PhylogenySnapshot]] =
+        entityManagerFactory
+            .transaction(entityManager =>
+                val logState = entityManager
+                    .createNativeQuery(FastPhylogenyDAO.KB_CHANGE_LOG_STATE_SQL)
+                    .setParameter(1, snapshot.kbVersion)
+                    .setParameter(2, kbVersionInDb)
+                    .getSingleResult
+                    .asInstanceOf[Array[Object]]
+                val oldest   = logState(0).asLong
+                val untied   = logState(1).asLong.getOrElse(0L)
+                // Old entries are purged, and a TRUNCATE can't be tied to concepts
+                if oldest.forall(_ > snapshot.kbVersion + 1) || untied > 0 then None
+                else
+                    val touched = entityManager
+                        .createNativeQuery(FastPhylogenyDAO.LOGGED_CONCEPT_IDS_SQL)
+                        .setParameter(1, snapshot.kbVersion)
+                        .setParameter(2, kbVersionInDb)
+                        .getResultList
+                    val changed = entityManager
+                        .createNativeQuery(FastPhylogenyDAO.LOGGED_CHANGES_SQL)
+                        .setParameter(1, snapshot.kbVersion)
+                        .setParameter(2, kbVersionInDb)
+                        .getResultList
+                    Some((touched.toArray.flatMap(_.asLong).toSet, toConceptRows(changed)))
+            )
+            .map(_.map { (touched, changed) =>
+                if touched.isEmpty then
+                    log.atDebug.log("The KB changed but not the tree")
+                    snapshot.copy()
+                else
+                    // A touched concept without rows was deleted or lost all its names
+                    val removed = touched -- changed.iterator.map(_.id)
+                    log.atDebug.log(s"Patched ${changed.size} changed rows and ${removed.size} removed concepts")
+                    snapshot.patch(changed, removed)
+            })
+
+    /**
+     * Without the log. Deleted concepts are found by comparing concept ids and deleted names by counting the rows of
+     * the KB. A change that is missed by the [[FastPhylogenyService.ChangeOverlap]] window and also offsets the row
+     * count (e.g. one name renamed late while another is deleted) is served stale until the next full reload.
+     *
+     * @return
+     *   None if the patched snapshot doesn't have as many names as the database
+     */
+    private def loadChangesSince(snapshot: PhylogenySnapshot): Either[Throwable, Option[PhylogenySnapshot]] =
+        entityManagerFactory
+            .transaction(entityManager =>
+                // A row stamped before the newest one seen may have committed after it
+                val since      = snapshot.lastUpdate.minus(FastPhylogenyService.ChangeOverlap)
+                val changed    = entityManager
+                    .createNativeQuery(FastPhylogenyDAO.CHANGED_SQL)
+                    .setParameter(1, Timestamp.from(since))
+                    .getResultList
+                val conceptIds = entityManager
+                    .createNativeQuery(FastPhylogenyDAO.CONCEPT_IDS_SQL)
+                    .getResultList
+                val rowCount   = entityManager
+                    .createNativeQuery(FastPhylogenyDAO.ROW_COUNT_SQL)
+                    .getSingleResult
+                (toConceptRows(changed), conceptIds.toArray.flatMap(_.asLong).toSet, rowCount.asLong)
+            )
+            .map { (changed, conceptIds, rowCount) =>
+                val tree    = snapshot.tree
+                val removed = (0 until tree.size).iterator.map(tree.id).filterNot(conceptIds.contains).toSet
+                if changed.isEmpty && removed.isEmpty && rowCount.contains(snapshot.rowCount.toLong) then
+                    log.atDebug.log("The KB changed but not the tree")
+                    Some(snapshot.copy())
+                else
+                    val patched = snapshot.patch(changed, removed)
+                    log.atDebug.log(s"Patched ${changed.size} changed rows and ${removed.size} removed concepts")
+                    Option.when(rowCount.contains(patched.rowCount.toLong))(patched)
+            }
+
+    private def executeQuery(): Either[Throwable, Seq[ConceptRow]] =
+        entityManagerFactory
+            .transaction(entityManager => entityManager.createNativeQuery(FastPhylogenyDAO.SQL).getResultList)
+            .map(toConceptRows)
+
+    private def toConceptRows(results: java.util.List[?]): Seq[ConceptRow] =
+        for result <- ArraySeq.unsafeWrapArray(results.toArray)
+        yield
+            val row                  = result.asInstanceOf[Array[Object]]
+            val id                   = row(0).asLong.getOrElse(-1L)
+            val parentId             = row(1).asLong
+            val name                 = row(2).asString.orNull
+            val rankLevel            = row(3).asString
+            val rankName             = row(4).asString
+            val nameType             = row(5).asString.orNull
+            val conceptTimestamp     = row(6).asInstant.getOrElse(Instant.now())
+            val conceptNameTimestamp = row(7).asInstant.getOrElse(Instant.now())
+            ConceptRow(
+                id,
+                parentId,
+                name,
+                rankLevel,
+                rankName,
+                nameType,
+                conceptTimestamp,
+                conceptNameTimestamp
+            )
+
+object FastPhylogenyService:
+
+    /**
+     * Without the kb_change log, changes are re-read from this long before the newest LAST_UPDATED_TIME already
+     * seen. It covers transactions that commit after a later stamped one, and writers whose clocks disagree.
+     */
+    val ChangeOverlap: Duration = Duration.ofMinutes(5)
+
+    /** Without the kb_change log, the whole tree is reloaded this often in case a change slipped past the overlap */
+    val FullReloadInterval: Duration = Duration.ofHours(1)
+
+    /** Retries never wait longer than this, however many attempts have failed */
+    val MaxRetryDelay: Duration = Duration.ofMinutes(5)
+
+    /**
+     * @param failures
+     *   The number of consecutive failures, at least 1
+     * @return
+     *   How long to wait before the next attempt: `base` doubled for each failure after the first, up to
+     *   [[MaxRetryDelay]] (or `base` if that is longer)
+     */
+    def retryDelay(base: Duration, failures: Int): Duration =
+        val cap     = if base.compareTo(MaxRetryDelay) > 0 then base else MaxRetryDelay
+        val doubled = base.multipliedBy(1L << math.min(math.max(failures - 1, 0), 20))
+        if doubled.compareTo(cap) > 0 then cap else doubled
+
+    /**
+     * @param lastChecked
+     *   When the database was last reached successfully
+     * @param failures
+     *   How many attempts in a row have failed
+     * @param retryAt
+     *   No attempt is made before this time
+     */
+    private case class RefreshState(lastChecked: Option[Instant], failures: Int, retryAt: Instant)
 
 object FastPhylogenyDAO:
     val SQL: String =
@@ -163,17 +733,58 @@ object FastPhylogenyDAO:
       | cn.CONCEPTNAME IS NOT NULL
     """.stripMargin('|')
 
-    val LAST_UPDATE_SQL: String =
+    /**
+     * Every name of every concept that was, or has a name that was, modified at or after the given time. Only used
+     * where there is no kb_change log, as the times are stamped when rows are written, not when they commit.
+     */
+    val CHANGED_SQL: String =
+        SQL + """  AND C.ID IN (
+      |    SELECT ID FROM Concept WHERE LAST_UPDATED_TIME >= ?1
+      |    UNION
+      |    SELECT CONCEPTID_FK FROM ConceptName WHERE LAST_UPDATED_TIME >= ?1
+      |  )
+    """.stripMargin('|')
+
+    /**
+     * Postgres only. Every name of every concept whose names or parent changed in the KB versions after ?1, up to and
+     * including ?2. See V1.0.4__kb_change.sql
+     */
+    val LOGGED_CHANGES_SQL: String =
+        SQL + """  AND C.ID IN (
+      |    SELECT concept_id FROM kb_change WHERE version > ?1 AND version <= ?2 AND names_changed
+      |  )
+    """.stripMargin('|')
+
+    /**
+     * Postgres only. The oldest version still in the kb_change log, and how many changes in the versions after ?1, up
+     * to and including ?2, aren't tied to a concept
+     */
+    val KB_CHANGE_LOG_STATE_SQL: String =
         """SELECT
-      |  MAX(t.mytime)
-      |FROM
-      |(SELECT
-      |  MAX(LAST_UPDATED_TIME) AS mytime
-      |FROM
-      |  Concept
-      |UNION
-      |SELECT
-      |  MAX(LAST_UPDATED_TIME) AS mytime
+      |  (SELECT MIN(version) FROM kb_change),
+      |  (SELECT COUNT(*) FROM kb_change WHERE version > ?1 AND version <= ?2 AND concept_id IS NULL)
+    """.stripMargin('|')
+
+    /** Postgres only. The concepts whose names or parent changed in the KB versions after ?1, up to and including ?2 */
+    val LOGGED_CONCEPT_IDS_SQL: String =
+        "SELECT DISTINCT concept_id FROM kb_change WHERE version > ?1 AND version <= ?2 AND names_changed"
+
+    val CONCEPT_IDS_SQL: String = "SELECT ID FROM Concept"
+
+    /** The number of rows that [[SQL]] returns */
+    val ROW_COUNT_SQL: String =
+        """SELECT
+      |  COUNT(*)
       |FROM
-      |  ConceptName) t
+      |  CONCEPT C LEFT JOIN
+      |  ConceptName cn ON cn.CONCEPTID_FK = C.ID
+      |WHERE
+      | cn.CONCEPTNAME IS NOT NULL
     """.stripMargin('|')
+
+    /** Bumped by database triggers on every insert, update or delete of the KB tables. See V1.0.2__kb_version.sql */
+    val KB_VERSION_SQL: String = "SELECT version FROM kb_version WHERE id = 1"
+
+    /** Postgres only. See V1.0.4__kb_change.sql */
+    val KB_CHANGES_SQL: String =
+        "SELECT DISTINCT concept_id, names_changed FROM kb_change WHERE version > ? AND version <= ?"
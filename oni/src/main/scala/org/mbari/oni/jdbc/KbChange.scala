@@ -0,0 +1,27 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.jdbc
+
+/**
+ * One row of the Postgres kb_change log (see V1.0.4__kb_change.sql): a concept touched by a KB version
+ *
+ * @param conceptId
+ *   None if the change couldn't be tied to concepts, in which case anything may have changed
+ * @param namesChanged
+ *   true if a concept name may have been added, removed or renamed
+ */
+final case class KbChange(conceptId: Option[Long], namesChanged: Boolean)
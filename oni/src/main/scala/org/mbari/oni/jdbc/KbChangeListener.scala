@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.jdbc
+
+import org.mbari.oni.config.DatabaseConfig
+import org.mbari.oni.etc.jdk.JdbcTypes.*
+import org.mbari.oni.etc.jdk.Loggers.given
+import org.postgresql.PGConnection
+
+import java.sql.{Connection, DriverManager}
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicBoolean
+import scala.util.Using
+import scala.util.control.NonFatal
+
+/**
+ * Listens on the Postgres [[KbChangeListener.Channel]] channel, which the kb_version triggers notify when a change to
+ * the KB commits, and calls `onChange` with the new KB version. This lets every server react to an edit made through
+ * any of them without waiting for its next poll.
+ *
+ * Polling stays in place as the fallback. Notifications sent while the listener is disconnected are lost, so
+ * `onChange` is also called with the current version each time the listener (re)connects.
+ *
+ * The listener holds its own connection, outside the pool, as a LISTEN only lasts as long as the session.
+ *
+ * @param reconnectDelay
+ *   How long to wait before reconnecting after the connection is lost
+ * @param onChange
+ *   Called on the listener's thread. Exceptions are logged and otherwise ignored.
+ */
+class KbChangeListener(databaseConfig: DatabaseConfig, reconnectDelay: Duration = Duration.ofSeconds(5))(
+    onChange: Long => Unit
+) extends AutoCloseable:
+
+    private val log = System.getLogger(getClass.getName)
+
+    private val running = new AtomicBoolean(false)
+
+    @volatile private var connection: Option[Connection] = None
+
+    private val thread =
+        val t = new Thread(() => run(), "kb-change-listener")
+        t.setDaemon(true)
+        t
+
+    def start(): KbChangeListener =
+        if running.compareAndSet(false, true) then thread.start()
+        this
+
+    /** True while the listener has a connection and is waiting for notifications */
+    def isListening: Boolean = running.get() && connection.isDefined
+
+    override def close(): Unit =
+        if running.compareAndSet(true, false) then
+            thread.interrupt()
+            connection.foreach(c =>
+                try c.close()
+                catch case NonFatal(_) => ()
+            )
+
+    private def run(): Unit =
+        while running.get() do
+            try listen()
+            catch
+                case NonFatal(e) if running.get() =>
+                    log.atWarn
+                        .withCause(e)
+                        .log(s"Stopped listening for KB changes. Reconnecting in ${reconnectDelay.toSeconds}s")
+                    try Thread.sleep(reconnectDelay.toMillis)
+                    catch case _: InterruptedException => ()
+                case NonFatal(_)                  => ()
+            finally connection = None
+
+    private def listen(): Unit =
+        Using.resource(DriverManager.getConnection(databaseConfig.url, databaseConfig.user, databaseConfig.password)) {
+            conn =>
+                conn.setAutoCommit(true)
+                Using.resource(conn.createStatement())(_.execute(s"LISTEN ${KbChangeListener.Channel}"))
+                connection = Some(conn)
+                log.atInfo.log(s"Listening for KB changes on ${KbChangeListener.Channel}")
+
+                // Anything that committed while we weren't listening was missed
+                changed(currentVersion(conn))
+
+                val pgConnection = conn.unwrap(classOf[PGConnection])
+                while running.get() do
+                    val notifications = Option(pgConnection.getNotifications(KbChangeListener.WaitMillis))
+                        .map(_.toSeq)
+                        .getOrElse(Nil)
+                    if notifications.isEmpty then
+                        // A quiet connection may be a dead one. Fail so that we reconnect.
+                        if !conn.isValid(KbChangeListener.ValidationTimeoutSeconds) then
+                            throw new IllegalStateException("The KB change listener's connection is no longer valid")
+                    else
+                        // Several commits can arrive together. Only the latest version matters.
+                        notifications.flatMap(n => n.getParameter.toLongOption).maxOption.foreach(changed)
+        }
+
+    private def currentVersion(conn: Connection): Long =
+        Using.resource(conn.createStatement()) { statement =>
+            val resultSet = statement.executeQuery(FastPhylogenyDAO.KB_VERSION_SQL)
+            if resultSet.next() then resultSet.getObject(1).asLong.getOrElse(0L) else 0L
+        }
+
+    private def changed(version: Long): Unit =
+        log.atDebug.log(s"KB changed to version $version")
+        try onChange(version)
+        catch case NonFatal(e) => log.atWarn.withCause(e).log(s"Failed to handle KB version $version")
+
+object KbChangeListener:
+
+    /** Must match the channel notified by bump_kb_version() in V1.0.3__kb_notify.sql */
+    val Channel = "oni_kb_changed"
+
+    private val WaitMillis               = 10000
+    private val ValidationTimeoutSeconds = 5
@@ -49,7 +49,6 @@ class MutableConcept:
         mc
 
     def toImmutable: Concept =
-        // println(s"${this.id} - ${this.names}")
         val primaryName      = names
             .find(_.isPrimary)
             .getOrElse(names.head)
@@ -72,25 +71,37 @@ object MutableConcept:
         mc.id = Some(parentId)
         mc
 
-    // TODO return the nodes too!!
+    /**
+     * Assembles the rows returned by [[FastPhylogenyDAO.SQL]] into a tree. Nodes are tracked by id so the tree is
+     * built in a single linear pass over the rows. Requests are served from a [[CompactTree]] instead; this plain
+     * object tree is kept as the reference that the phylogeny cache is tested against.
+     *
+     * @param rows
+     *   One row per concept name
+     * @return
+     *   The root node (if one was found) and every node in the tree
+     */
     def toTree(rows: Seq[ConceptRow]): (Option[MutableConcept], Seq[MutableConcept]) =
-        val nodes = new mutable.ArrayBuffer[MutableConcept]
+        val nodes     = new mutable.ArrayBuffer[MutableConcept]
+        val nodesById = mutable.HashMap.empty[Long, MutableConcept]
+        // Children are collected per parent and assigned once all rows are processed
+        val childrenByParent = mutable.HashMap.empty[MutableConcept, mutable.LinkedHashSet[MutableConcept]]
+
+        def findOrCreate(id: Long): MutableConcept =
+            nodesById.getOrElseUpdate(
+                id, {
+                    val mc = newParent(id)
+                    nodes += mc
+                    mc
+                }
+            )
+
         for row <- rows do
 
             /*
               Find an existing parent or create one as needed
              */
-            val parentOpt = row
-                .parentId
-                .map(parentId =>
-                    nodes
-                        .find(_.id.getOrElse(-1L) == parentId)
-                        .getOrElse {
-                            val mc = newParent(parentId)
-                            nodes += mc
-                            mc
-                        }
-                )
+            val parentOpt = row.parentId.map(findOrCreate)
 
             if parentOpt.isEmpty then
                 System
@@ -100,18 +111,12 @@ object MutableConcept:
             /*
               Find the existing concept or create one if needed
              */
-            val concept = nodes.find(_.id.getOrElse(-1L) == row.id) match
-                case None     =>
-                    val mc = new MutableConcept
-                    mc.id = Some(row.id)
-                    nodes += mc
-                    mc
-                case Some(mc) => mc
+            val concept = findOrCreate(row.id)
 
             // Set the parent of the concept!!
             parentOpt.foreach(parent =>
                 concept.parent = parentOpt
-                if !parent.children.contains(concept) then parent.children = parent.children :+ concept
+                childrenByParent.getOrElseUpdate(parent, mutable.LinkedHashSet.empty) += concept
             )
 
             if concept.rank.isEmpty && row.rank.isDefined then concept.rank = row.rank
@@ -119,5 +124,7 @@ object MutableConcept:
             val cn = CName(row.name, row.nameType)
             concept.names = concept.names :+ cn
 
+        for (parent, children) <- childrenByParent do parent.children = children.toSeq
+
         val root = nodes.find(_.parent.isEmpty)
         (root, nodes.toSeq)
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.jdbc
+
+import org.mbari.oni.domain.{Concept, NameSuggestion, NameValidation, SimpleConcept}
+
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+import scala.collection.mutable
+
+/**
+ * One fully built version of the phylogeny cache. A snapshot is assembled off to the side by
+ * [[FastPhylogenyService]] and then published as a whole, so readers always see a complete tree. The tree is stored
+ * in a [[CompactTree]]; nodes are addressed by their index in it.
+ *
+ * Because a tree never changes, the immutable [[Concept]] views handed out to callers are built at most once per
+ * node and then shared by every request served from the tree. A subtree reuses the already built subtrees of its
+ * children. The views are kept with the tree in [[PhylogenySnapshot.Views]], so a copy of the snapshot with a new KB
+ * version (e.g. after a media edit) keeps them.
+ *
+ * @param views
+ *   The KB tree and the views built from it so far
+ * @param lastUpdate
+ *   The most recent LAST_UPDATED_TIME of the rows used to build this snapshot
+ * @param version
+ *   Incremented each time a new snapshot is published. Anything derived from a snapshot can be keyed by it.
+ * @param kbVersion
+ *   The database's KB version counter (see [[FastPhylogenyDAO.KB_VERSION_SQL]]) read before the rows were. 0 if
+ *   unknown.
+ */
+final case class PhylogenySnapshot(
+    views: PhylogenySnapshot.Views,
+    lastUpdate: Instant,
+    version: Long = 0L,
+    kbVersion: Long = 0L
+):
+
+    import views.{branches, leaves, subtrees, taxa}
+
+    /** The KB tree */
+    def tree: CompactTree = views.tree
+
+    /** The number of concept names in this snapshot */
+    def rowCount: Int = tree.nameCount
+
+    def root: Option[Int] = Option(tree.root).filter(_ != CompactTree.NoNode)
+
+    def findNode(name: String): Option[Int] = Option(tree.find(name)).filter(_ != CompactTree.NoNode)
+
+    def isEmpty: Boolean = tree.size == 0
+
+    /** Whether the name is in the KB and, if so, its concept's primary name and rank */
+    def validate(name: String): NameValidation =
+        findNode(name) match
+            case Some(node) => NameValidation(name, true, Some(tree.primaryName(node)), tree.rank(node))
+            case None       => NameValidation(name, false)
+
+    /** Names close to a misspelled one. See [[CompactTree.suggest]]. */
+    def suggest(name: String, limit: Int, maxDistance: Int): Seq[NameSuggestion] =
+        tree
+            .suggest(name, limit, maxDistance)
+            .map((suggestion, distance) =>
+                NameSuggestion(suggestion, tree.primaryName(tree.find(suggestion)), distance)
+            )
+
+    /**
+     * @return
+     *   None if either name is not in the KB. Otherwise true if `name` is `ancestorName` or one of its descendants.
+     */
+    def isDescendant(name: String, ancestorName: String): Option[Boolean] =
+        for
+            node     <- findNode(name)
+            ancestor <- findNode(ancestorName)
+        yield tree.contains(ancestor, node)
+
+    /**
+     * @return
+     *   The node and all of its descendants
+     */
+    def subtree(node: Int): Concept =
+        memoize(subtrees, node)(toConcept(node, tree.children(node).map(subtree)))
+
+    /**
+     * @return
+     *   The path from the root down to the node. Each concept on the path only has the next one as a child and the
+     *   node itself has no children.
+     */
+    def branch(node: Int): Concept =
+        memoize(branches, node) {
+            var concept = leaf(node)
+            var parent  = tree.parent(node)
+            while parent != CompactTree.NoNode do
+                concept = toConcept(parent, Seq(concept))
+                parent = tree.parent(parent)
+            concept
+        }
+
+    /**
+     * @return
+     *   The node and all of its descendants as a flat list, without children, sorted by name
+     */
+    def flatSubtree(node: Int): Seq[Concept] =
+        memoize(taxa, node) {
+            val builder = Seq.newBuilder[Concept]
+            val stack   = mutable.Stack(node)
+            while stack.nonEmpty do
+                val next = stack.pop()
+                builder += leaf(next)
+                stack.pushAll(tree.children(next))
+            builder.result().sortBy(_.name)
+        }
+
+    /**
+     * Like [[subtree]] but limited in depth and size, so that a client can expand a large branch a level at a time.
+     * Nodes are taken breadth-first and a node's children are included all together or not at all. A node without
+     * children in the result may still have children in the KB.
+     *
+     * @param maxDepth
+     *   How many levels below the node to include. 0 returns just the node.
+     * @param maxNodes
+     *   The most concepts to return, including the node itself
+     */
+    def subtree(node: Int, maxDepth: Option[Int], maxNodes: Option[Int]): Concept =
+        if maxDepth.isEmpty && maxNodes.isEmpty then subtree(node)
+        else
+            val expanded = expand(node, maxDepth, maxNodes)
+            def build(n: Int): Concept =
+                if expanded.contains(n) then toConcept(n, tree.children(n).map(build))
+                else leaf(n)
+            build(node)
+
+    /**
+     * Like [[flatSubtree]] but limited in depth and size. Returns the same concepts as the limited `subtree`.
+     */
+    def flatSubtree(node: Int, maxDepth: Option[Int], maxNodes: Option[Int]): Seq[Concept] =
+        if maxDepth.isEmpty && maxNodes.isEmpty then flatSubtree(node)
+        else
+            val expanded = expand(node, maxDepth, maxNodes)
+            (node +: expanded.toSeq.flatMap(tree.children)).map(leaf).sortBy(_.name)
+
+    /**
+     * Like [[flatSubtree]] but only the concepts with the given rank, looked up in the tree's rank index instead of
+     * walking the subtree.
+     *
+     * @param rank
+     *   The full rank, e.g. "species". Case-insensitive.
+     * @param maxDepth
+     *   How many levels below the node to include
+     * @param maxNodes
+     *   The most concepts to return. As they are sorted by name, these are the first ones alphabetically.
+     */
+    def flatSubtree(node: Int, rank: String, maxDepth: Option[Int], maxNodes: Option[Int]): Seq[Concept] =
+        val deepest = maxDepth.map(tree.depth(node) + _)
+        tree.withRank(node, rank)
+            .iterator
+            .filter(n => deepest.forall(tree.depth(n) <= _))
+            .take(maxNodes.getOrElse(Int.MaxValue))
+            .map(leaf)
+            .toSeq
+
+    /**
+     * @return
+     *   The children of the node's parent, including the node. Empty for the root.
+     */
+    def siblings(node: Int): Seq[SimpleConcept] =
+        val parent = tree.parent(node)
+        if parent == CompactTree.NoNode then Nil
+        else tree.children(parent).map(simple)
+
+    /**
+     * @return
+     *   The deepest node that is, or is an ancestor of, every one of the nodes. None if there are no nodes or they
+     *   don't share a root.
+     */
+    def lowestCommonAncestor(nodes: Seq[Int]): Option[Int] =
+        nodes
+            .reduceOption((a, b) => if a == CompactTree.NoNode then a else tree.lowestCommonAncestor(a, b))
+            .filter(_ != CompactTree.NoNode)
+
+    /**
+     * @return
+     *   The concepts from `from` up to their lowest common ancestor and back down to `to`. Empty if they don't share
+     *   a root.
+     */
+    def path(from: Int, to: Int): Seq[SimpleConcept] = tree.path(from, to).map(simple)
+
+    def simple(node: Int): SimpleConcept =
+        SimpleConcept(tree.primaryName(node), tree.rank(node), tree.alternativeNames(node))
+
+    /**
+     * @return
+     *   The nodes, from `node` down, whose children fit within the limits
+     */
+    private def expand(node: Int, maxDepth: Option[Int], maxNodes: Option[Int]): collection.Set[Int] =
+        val depthLimit = maxDepth.getOrElse(Int.MaxValue)
+        val nodeLimit  = maxNodes.getOrElse(Int.MaxValue)
+        val expanded   = mutable.LinkedHashSet.empty[Int]
+        val queue      = mutable.Queue((node, 0))
+        var count      = 1
+        var full       = count >= nodeLimit
+        while queue.nonEmpty && !full do
+            val (next, depth) = queue.dequeue()
+            val childCount    = tree.childCount(next)
+            if depth < depthLimit && childCount > 0 then
+                if childCount > nodeLimit - count then full = true
+                else
+                    expanded += next
+                    count += childCount
+                    queue ++= tree.children(next).map(child => (child, depth + 1))
+        expanded
+
+    private def leaf(node: Int): Concept = memoize(leaves, node)(toConcept(node, Nil))
+
+    private def toConcept(node: Int, children: Seq[Concept]): Concept =
+        Concept(tree.primaryName(node), tree.rank(node), tree.alternativeNames(node), children)
+
+    /**
+     * Not computeIfAbsent: building a subtree looks up its children in the same map, which ConcurrentHashMap does not
+     * allow from inside a mapping function. Two threads may race to build the same value; the first one stored wins.
+     */
+    private def memoize[A](cache: ConcurrentHashMap[Int, A], node: Int)(build: => A): A =
+        val cached = cache.get(node)
+        if cached != null then cached
+        else
+            val value    = build
+            val existing = cache.putIfAbsent(node, value)
+            if existing != null then existing else value
+
+    /**
+     * Build a new snapshot with changes applied. See [[CompactTree.patch]].
+     *
+     * @param changed
+     *   All rows (every name) of each concept that was added or modified
+     * @param removed
+     *   The ids of concepts that were deleted
+     * @return
+     *   A new snapshot. This one is not modified.
+     */
+    def patch(changed: Seq[ConceptRow], removed: Set[Long]): PhylogenySnapshot =
+        val lastUpdate = (changed.map(_.lastUpdate) :+ this.lastUpdate).maxBy(_.toEpochMilli)
+        PhylogenySnapshot(Views(tree.patch(changed, removed)), lastUpdate)
+
+object PhylogenySnapshot:
+
+    /** A tree and the immutable views built from it, keyed by node and filled in on first use */
+    final class Views(val tree: CompactTree):
+        private[jdbc] val subtrees = new ConcurrentHashMap[Int, Concept]()
+        private[jdbc] val branches = new ConcurrentHashMap[Int, Concept]()
+        private[jdbc] val taxa     = new ConcurrentHashMap[Int, Seq[Concept]]()
+        private[jdbc] val leaves   = new ConcurrentHashMap[Int, Concept]()
+
+    val Empty: PhylogenySnapshot = PhylogenySnapshot(Views(CompactTree.Empty), Instant.EPOCH)
+
+    /**
+     * Build a snapshot from the rows returned by [[FastPhylogenyDAO.SQL]]
+     * @param rows
+     *   One row per concept name
+     * @param previousLastUpdate
+     *   Used as the snapshot's lastUpdate when there are no rows
+     */
+    def from(rows: Seq[ConceptRow], previousLastUpdate: Instant = Instant.EPOCH): PhylogenySnapshot =
+        val lastUpdate =
+            if rows.isEmpty then previousLastUpdate
+            else rows.maxBy(_.lastUpdate.toEpochMilli).lastUpdate
+        PhylogenySnapshot(Views(CompactTree.from(rows)), lastUpdate)
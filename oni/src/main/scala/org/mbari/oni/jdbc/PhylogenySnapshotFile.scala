@@ -0,0 +1,114 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.jdbc
+
+import java.io.{BufferedOutputStream, DataOutputStream, IOException}
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, StandardCopyOption, StandardOpenOption}
+import java.security.MessageDigest
+import java.time.Instant
+import java.util.zip.{CRC32, CheckedOutputStream}
+import scala.util.{Try, Using}
+
+/**
+ * Reads and writes a [[PhylogenySnapshot]] to local disk so that a restarted server can answer phylogeny requests
+ * before it has read the KB from the database.
+ *
+ * The file holds a header (magic number, format version, a digest of the database it was built from and the
+ * snapshot's last update and KB version), the arrays of the [[CompactTree]] and a CRC32 of everything before it. A
+ * file written by a different format version, for a different database or that fails the checksum is rejected; the
+ * caller then loads from the database as usual.
+ */
+object PhylogenySnapshotFile:
+
+    /** "ONIP" */
+    private val Magic = 0x4f4e4950
+
+    /** Bump whenever the layout written by [[write]] or [[CompactTree.write]] changes */
+    val FormatVersion = 2
+
+    /**
+     * Write the snapshot to a temporary file next to `path` and then move it into place, so readers never see a
+     * partially written file.
+     *
+     * @param source
+     *   Identifies the database the snapshot was built from, typically its JDBC URL
+     */
+    def write(snapshot: PhylogenySnapshot, source: String, path: Path): Either[Throwable, Path] =
+        Try {
+            val target = path.toAbsolutePath
+            Files.createDirectories(target.getParent)
+            val temp   = Files.createTempFile(target.getParent, target.getFileName.toString, ".tmp")
+            try
+                Using.resource(new CheckedOutputStream(Files.newOutputStream(temp), new CRC32())) { checked =>
+                    val out = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16))
+                    out.writeInt(Magic)
+                    out.writeInt(FormatVersion)
+                    val sourceDigest = digest(source)
+                    out.writeInt(sourceDigest.length)
+                    out.write(sourceDigest)
+                    out.writeLong(snapshot.lastUpdate.getEpochSecond)
+                    out.writeInt(snapshot.lastUpdate.getNano)
+                    out.writeLong(snapshot.kbVersion)
+                    CompactTree.write(snapshot.tree, out)
+                    out.flush()
+                    out.writeLong(checked.getChecksum.getValue)
+                    out.flush()
+                }
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+            finally Files.deleteIfExists(temp)
+        }.toEither
+
+    /**
+     * Memory-map the file and read the snapshot from it. The returned snapshot has version 0, like one built from
+     * the database.
+     *
+     * @param source
+     *   Must match the source the file was written with
+     */
+    def read(path: Path, source: String): Either[Throwable, PhylogenySnapshot] =
+        Try {
+            Using.resource(FileChannel.open(path, StandardOpenOption.READ)) { channel =>
+                val size = channel.size()
+                if size < 2 * Integer.BYTES + java.lang.Long.BYTES then throw new IOException(s"$path is truncated")
+                if size > Int.MaxValue then throw new IOException(s"$path is too large to be a phylogeny snapshot")
+                val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+
+                val crc      = new CRC32()
+                crc.update(buffer.slice(0, size.toInt - java.lang.Long.BYTES))
+                val expected = buffer.getLong(size.toInt - java.lang.Long.BYTES)
+                if buffer.getInt() != Magic then throw new IOException(s"$path is not a phylogeny snapshot")
+                val version  = buffer.getInt()
+                if version != FormatVersion then
+                    throw new IOException(s"$path has format version $version, expected $FormatVersion")
+                if crc.getValue != expected then throw new IOException(s"$path is corrupt (checksum mismatch)")
+
+                val sourceDigest = new Array[Byte](buffer.getInt())
+                buffer.get(sourceDigest)
+                if !MessageDigest.isEqual(sourceDigest, digest(source)) then
+                    throw new IOException(s"$path was written for a different database")
+
+                val lastUpdate = Instant.ofEpochSecond(buffer.getLong(), buffer.getInt())
+                val kbVersion  = buffer.getLong()
+                PhylogenySnapshot(PhylogenySnapshot.Views(CompactTree.read(buffer)), lastUpdate, kbVersion = kbVersion)
+            }
+        }.toEither
+
+    /** Only a digest of the source is stored, as JDBC URLs can contain credentials */
+    private def digest(source: String): Array[Byte] =
+        MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8))
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.jdbc
+
+import scala.collection.immutable.ArraySeq
+import scala.collection.mutable
+
+/**
+ * An inverted index from each three-character sequence (trigram) to the names that contain it, ignoring case. A
+ * substring search only has to check the names that contain every trigram of the substring, found by intersecting
+ * their posting lists, instead of every name.
+ *
+ * Stored column-wise like [[CompactTree]]: the sorted trigrams, and for each one a run of name indices in `postings`
+ * addressed by `offsets`.
+ */
+final class TrigramIndex private (
+    names: IndexedSeq[String],
+    keys: Array[Long],
+    offsets: Array[Int],
+    postings: Array[Int]
+):
+
+    import TrigramIndex.*
+
+    /**
+     * @return
+     *   The indices (into the names the index was built from) of the names that contain `substring`, ignoring case,
+     *   in ascending order. Substrings shorter than three characters have no trigrams, so every name is checked.
+     */
+    def find(substring: String): IndexedSeq[Int] =
+        val candidates =
+            if substring.length < 3 then names.indices.toArray
+            else
+                val lists  = trigrams(substring).toArray.map(postingsOf).sortBy(_.length)
+                // Start from the rarest trigram and look each candidate up in the other lists
+                val rarest = java.util.Arrays.copyOfRange(postings, lists.head.start, lists.head.end)
+                rarest.filter(i =>
+                    lists.tail.forall(list => java.util.Arrays.binarySearch(postings, list.start, list.end, i) >= 0)
+                )
+        ArraySeq.unsafeWrapArray(candidates.filter(i => containsIgnoreCase(names(i), substring)))
+
+    def estimatedSizeInBytes: Long = 48L + keys.length * 8L + offsets.length * 4L + postings.length * 4L
+
+    private def postingsOf(key: Long): Range =
+        val i = java.util.Arrays.binarySearch(keys, key)
+        if i < 0 then Range(0, 0) else Range(offsets(i), offsets(i + 1))
+
+object TrigramIndex:
+
+    def apply(names: IndexedSeq[String]): TrigramIndex =
+        val lists = mutable.LongMap.empty[mutable.ArrayBuilder.ofInt]
+        for i <- names.indices do
+            // Names are visited in order, so each list comes out sorted
+            for key <- trigrams(names(i)) do lists.getOrElseUpdate(key, new mutable.ArrayBuilder.ofInt) += i
+        val keys     = lists.keysIterator.toArray.sorted
+        val offsets  = new Array[Int](keys.length + 1)
+        val postings = mutable.ArrayBuilder.make[Int]
+        for (key, k) <- keys.zipWithIndex do
+            val list = lists(key).result()
+            postings ++= list
+            offsets(k + 1) = offsets(k) + list.length
+        new TrigramIndex(names, keys, offsets, postings.result())
+
+    /** Matches the case folding of String.regionMatches(ignoreCase = true) */
+    private[jdbc] def fold(c: Char): Char = Character.toLowerCase(Character.toUpperCase(c))
+
+    /** The distinct trigrams of a string, each packed into a Long */
+    private def trigrams(s: String): Set[Long] =
+        (0 to s.length - 3)
+            .map(i => (fold(s.charAt(i)).toLong << 32) | (fold(s.charAt(i + 1)).toLong << 16) | fold(s.charAt(i + 2)))
+            .toSet
+
+    private def containsIgnoreCase(name: String, substring: String): Boolean =
+        (0 to name.length - substring.length).exists(i => name.regionMatches(true, i, substring, 0, substring.length))
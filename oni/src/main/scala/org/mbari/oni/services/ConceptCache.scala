@@ -23,53 +23,270 @@
 
 package org.mbari.oni.services
 
-import com.github.benmanes.caffeine.cache.{Cache, Caffeine}
+import com.github.benmanes.caffeine.cache.{Cache, Caffeine, LoadingCache}
+import org.mbari.oni.{ConceptNameNotFound, ConceptNotFoundException}
 import org.mbari.oni.domain.ConceptMetadata
+import org.mbari.oni.etc.circe.CirceCodecs.{*, given}
 import org.mbari.oni.etc.jdk.Loggers.given
+import org.mbari.oni.jdbc.FastPhylogenyService
 
-import java.util.concurrent.TimeUnit
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.HexFormat
+import java.util.concurrent.{CompletionException, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
+import scala.jdk.CollectionConverters.*
+import scala.util.Try
 
-class ConceptCache(conceptService: ConceptService, conceptNameService: ConceptNameService):
+/**
+ * Caches concept metadata by name. Entries are stamped with the KB version they were built from. After a change, only
+ * the touched concepts are evicted, and an entry built from a version older than the last change to its concept is
+ * ignored, so a load that raced with the change can't bring stale metadata back.
+ *
+ * Both caches load through Caffeine, so concurrent misses for a key share one database load. Entries are reloaded in
+ * the background once they are [[ConceptCache.RefreshMinutes]] old, and callers keep getting the old value until the
+ * reload finishes. An entry that isn't read again expires after [[ConceptCache.TtlMinutes]].
+ *
+ * @param fastPhylogenyService
+ *   If given, names that aren't in its cached KB are rejected without querying for the concept, as long as that cache
+ *   is as new as the latest KB version this server knows of, and changes are tracked by KB version and also evict the
+ *   parent and children of a changed concept. Without it, a change only evicts the concepts it names and any cached
+ *   under their other names.
+ */
+class ConceptCache(
+    conceptService: ConceptService,
+    conceptNameService: ConceptNameService,
+    fastPhylogenyService: Option[FastPhylogenyService] = None
+):
 
     private val log = System.getLogger(getClass.getName)
 
-    private val nameCache: Cache[String, ConceptMetadata] = Caffeine
+    private val nameCache: LoadingCache[String, ConceptCache.Tagged] = Caffeine
+        .newBuilder()
+        .refreshAfterWrite(ConceptCache.RefreshMinutes, TimeUnit.MINUTES)
+        .expireAfterWrite(ConceptCache.TtlMinutes, TimeUnit.MINUTES)
+        .build[String, ConceptCache.Tagged](name => load(name))
+
+    /** Holds the one [[ConceptCache.AllNamesCacheKey]] entry */
+    private val allNamesCache: LoadingCache[String, Seq[String]] = Caffeine
+        .newBuilder()
+        .refreshAfterWrite(ConceptCache.RefreshMinutes, TimeUnit.MINUTES)
+        .expireAfterWrite(ConceptCache.TtlMinutes, TimeUnit.MINUTES)
+        .build[String, Seq[String]](_ => loadAllNames())
+
+    /**
+     * Names the database recently didn't have, with the KB version known before it was asked. A miss is only trusted
+     * until this server learns of a newer KB version, as a name can be added on another server.
+     */
+    private val missCache: Cache[String, java.lang.Long] = Caffeine
         .newBuilder()
-        .expireAfterWrite(15, TimeUnit.MINUTES)
-        .build[String, ConceptMetadata]()
+        .expireAfterWrite(ConceptCache.MissTtlSeconds, TimeUnit.SECONDS)
+        .maximumSize(ConceptCache.MissCacheMaxSize)
+        .build[String, java.lang.Long]()
 
-    private val allNamesCache: Cache[String, Seq[String]] = Caffeine
+    /** The KB version of the latest change to each concept id. Kept as long as an entry can live. */
+    private val changedVersions: Cache[java.lang.Long, java.lang.Long] = Caffeine
         .newBuilder()
-        .expireAfterWrite(15, TimeUnit.MINUTES)
-        .build[String, Seq[String]]()
+        .expireAfterWrite(ConceptCache.TtlMinutes, TimeUnit.MINUTES)
+        .build[java.lang.Long, java.lang.Long]()
+
+    /** Stamped on new entries. Only advanced once the changes up to it have been evicted. */
+    private val kbVersion = new AtomicLong(0L)
+
+    /** How far the kb_change log has been read by [[kbChanged]]. 0 until the first call. */
+    private var appliedVersion = 0L
 
     def findByName(name: String): Either[Throwable, ConceptMetadata] =
+        findTaggedByName(name).map(_.metadata)
+
+    /**
+     * Like [[findByName]] but also returns an entity tag for the metadata, for use as an HTTP ETag. The tag is
+     * computed once when the metadata is cached.
+     */
+    def findTaggedByName(name: String): Either[Throwable, ConceptCache.Tagged] =
         Option(nameCache.getIfPresent(name)) match
-            case Some(node) => Right(node)
-            case None       =>
-                conceptService.findByName(name) match
-                    case Left(e)            =>
-                        log.atInfo.withCause(e).log(s"Failed to find concept by name: $name")
-                        Left(e)
-                    case Right(conceptNode) =>
-                        nameCache.put(name, conceptNode)
-                        Right(conceptNode)
+            case Some(tagged) if isCurrent(tagged) => Right(tagged)
+            case cached                            =>
+                // Read before the database is, so that a name added during the lookup makes the miss stale
+                val version = knownKbVersion()
+                if cached.isEmpty && isUnknown(name, version) then Left(ConceptNameNotFound(name))
+                else
+                    // A stale entry was loaded while its concept was changing. Drop it so that it is loaded again.
+                    cached.foreach(stale => nameCache.asMap().remove(name, stale))
+                    get(nameCache, name) match
+                        case Right(null)   =>
+                            missCache.put(name, version)
+                            Left(ConceptNameNotFound(name))
+                        case Left(e)       =>
+                            log.atInfo.withCause(e).log(s"Failed to find concept by name: $name")
+                            Left(e)
+                        case Right(tagged) => Right(tagged)
 
     def findAllNames(limit: Int, offset: Int): Either[Throwable, Seq[String]] =
-        val allNames = Option(allNamesCache.getIfPresent(ConceptCache.AllNamesCacheKey))
-        if allNames.isDefined && allNames.get.nonEmpty then Right(allNames.get.slice(offset, offset + limit))
-        else
-            conceptNameService.findAllNames(1000000, 0) match
-                case Left(e)      =>
-                    log.atError.withCause(e).log("Failed to find all concept names")
-                    Left(e)
-                case Right(names) =>
-                    allNamesCache.put(ConceptCache.AllNamesCacheKey, names)
-                    Right(names.slice(offset, offset + limit))
+        get(allNamesCache, ConceptCache.AllNamesCacheKey) match
+            case Left(e)      =>
+                log.atError.withCause(e).log("Failed to find all concept names")
+                Left(e)
+            case Right(names) => Right(Option(names).getOrElse(Nil).slice(offset, offset + limit))
 
-    def clear(): Unit =
+    /**
+     * Null if there's no such concept. Caffeine doesn't cache a null, and a background reload that returns one removes
+     * the entry.
+     */
+    private def load(name: String): ConceptCache.Tagged =
+        // Read before the database is, so that a change committed during the load makes the entry stale
+        val version = kbVersion.get()
+        conceptService.findByName(name) match
+            case Left(_: ConceptNotFoundException) => null
+            case Left(e)                           => throw e
+            case Right(metadata)                   => ConceptCache.Tagged(metadata, ConceptCache.tagOf(metadata), version)
+
+    /** Null, which Caffeine doesn't cache, if there are no names yet */
+    private def loadAllNames(): Seq[String] =
+        conceptNameService.findAllNames(1000000, 0) match
+            case Left(e)                       => throw e
+            case Right(names) if names.isEmpty => null
+            case Right(names)                  => names
+
+    /** Caffeine wraps checked exceptions thrown by a loader */
+    private def get[V](cache: LoadingCache[String, V], key: String): Either[Throwable, V] =
+        Try(cache.get(key)).toEither.left.map {
+            case e: CompletionException if e.getCause != null => e.getCause
+            case e                                            => e
+        }
+
+    /**
+     * @return
+     *   The newest KB version this server knows of, without touching the database: the one the phylogeny cache last
+     *   read, or a newer one reported to [[kbChanged]]. On Postgres the listener reports a change as soon as it
+     *   commits. Elsewhere a name added on another server may still be rejected as unknown until the next poll, much
+     *   like a recorded miss may until it expires.
+     */
+    private def knownKbVersion(): Long =
+        math.max(kbVersion.get(), fastPhylogenyService.map(_.publishedKbVersion).getOrElse(0L))
+
+    /**
+     * Without querying for the concept. A recorded miss or the phylogeny cache's Bloom filter only count if they are
+     * at least as new as `kbVersion`; otherwise the database is asked once and the miss recorded.
+     */
+    private def isUnknown(name: String, kbVersion: Long): Boolean =
+        Option(missCache.getIfPresent(name)).exists(_.longValue >= kbVersion) ||
+            fastPhylogenyService.exists(_.isUnknownName(name, kbVersion))
+
+    /** False if the concept has changed since the KB version the entry was built from */
+    private def isCurrent(tagged: ConceptCache.Tagged): Boolean =
+        tagged.metadata.id.forall(id => Option(changedVersions.getIfPresent(id)).forall(_ <= tagged.kbVersion))
+
+    /**
+     * Wrap a change to the KB made through this server. Afterwards, whether it succeeded or not, evicts the named
+     * concepts (under any of their names), their parents and their children, and refreshes the phylogeny cache, so
+     * that a name that was just added isn't rejected as unknown.
+     *
+     * The concepts are looked up before the change, while the caches still have any that it deletes (the phylogeny
+     * cache may be refreshed by its poller at any time after), and again after it, for names that it adds.
+     *
+     * @param names
+     *   The names of the changed concepts, including any they had before the change, and of a new concept's parent
+     * @param namesChanged
+     *   Whether a concept name was added, removed or renamed
+     * @param change
+     *   Makes the change
+     * @return
+     *   What `change` returned
+     */
+    def invalidating[A](names: Seq[String], namesChanged: Boolean)(change: => A): A =
+        val before = familyIds(names)
+        try change
+        finally
+            val version = fastPhylogenyService.flatMap(_.findKbVersion().toOption)
+            val ids     = before ++ familyIds(names)
+            nameCache.invalidateAll(names.asJava)
+            missCache.invalidateAll(names.asJava)
+            evict(ids, names.toSet, namesChanged, version)
+            fastPhylogenyService.foreach(_.refresh())
+
+    /**
+     * @return
+     *   The ids of the named concepts, as this cache and the phylogeny cache know them, and of their parents and
+     *   children, as the phylogeny cache knows them
+     */
+    private def familyIds(names: Seq[String]): Set[Long] =
+        val cached = names.flatMap(name => Option(nameCache.getIfPresent(name)).flatMap(_.metadata.id))
+        val family = fastPhylogenyService.map(service => names.flatMap(service.findFamilyIds)).getOrElse(Nil)
+        (cached ++ family).toSet
+
+    /**
+     * Call when the KB changes on any server, with the new KB version (see [[org.mbari.oni.jdbc.KbChangeListener]]).
+     * Evicts just the concepts that the kb_change log says were touched since the last call. Everything is cleared
+     * on the first call, as changes from before it are unknown, and if the log can't be read.
+     */
+    def kbChanged(version: Long): Unit = synchronized {
+        if version > appliedVersion then
+            val changes =
+                if appliedVersion == 0L then None
+                else
+                    fastPhylogenyService.flatMap(
+                        _.findKbChanges(appliedVersion, version) match
+                            case Right(changes) => Some(changes)
+                            case Left(e)        =>
+                                log.atWarn.withCause(e).log(s"Failed to read KB changes up to version $version")
+                                None
+                    )
+            changes match
+                case Some(changes) if changes.forall(_.conceptId.isDefined) =>
+                    evict(changes.flatMap(_.conceptId).toSet, Set.empty, changes.exists(_.namesChanged), Some(version))
+                    // A name added elsewhere may have been looked up here before it existed
+                    if changes.exists(_.namesChanged) then missCache.invalidateAll()
+                case _                                                      =>
+                    invalidateAll()
+                    kbVersion.accumulateAndGet(version, math.max)
+            appliedVersion = version
+    }
+
+    /**
+     * Evicts the entries of the given concepts. With a version, entries built from an older one that are still being
+     * loaded are also kept out, and new entries are stamped with it.
+     */
+    private def evict(ids: Set[Long], names: Set[String], namesChanged: Boolean, version: Option[Long]): Unit =
+        version.foreach(v => ids.foreach(id => changedVersions.put(id, v)))
+        nameCache
+            .asMap()
+            .values()
+            .removeIf(tagged => tagged.metadata.id.exists(ids.contains) || names.contains(tagged.metadata.name))
+        if namesChanged then allNamesCache.invalidateAll()
+        version.foreach(v => kbVersion.accumulateAndGet(v, math.max))
+
+    private def invalidateAll(): Unit =
         nameCache.invalidateAll()
         allNamesCache.invalidateAll()
+        missCache.invalidateAll()
+
+    /** Evicts everything and refreshes the phylogeny cache */
+    def clear(): Unit =
+        invalidateAll()
+        fastPhylogenyService.foreach(_.refresh())
 
 object ConceptCache:
     val AllNamesCacheKey = "all-names"
+
+    val TtlMinutes       = 15L
+    val RefreshMinutes   = 10L
+    val MissTtlSeconds   = 30L
+    val MissCacheMaxSize = 10000L
+
+    /**
+     * @param metadata
+     *   The cached metadata
+     * @param tag
+     *   A hash of the metadata's JSON. It changes exactly when the JSON does.
+     * @param kbVersion
+     *   The newest KB version whose changes had been applied to the cache when the metadata was read
+     */
+    final case class Tagged(metadata: ConceptMetadata, tag: String, kbVersion: Long = 0L)
+
+    def tagOf(metadata: ConceptMetadata): String =
+        val digest = MessageDigest
+            .getInstance("SHA-256")
+            .digest(metadata.stringify.getBytes(StandardCharsets.UTF_8))
+        // Half of a SHA-256 is plenty to tell versions of one concept apart
+        HexFormat.of().formatHex(digest, 0, 16)
@@ -136,6 +136,22 @@ class ConceptService(val entityManagerFactory: EntityManagerFactory):
                 .toSet
         )
 
+    /**
+     * @param ids
+     *   Concept ids, e.g. the candidates from an in-memory index. Ids that no longer exist are skipped.
+     */
+    def findByIds(ids: Seq[Long]): Either[Throwable, Seq[ConceptMetadata]] =
+        if ids.isEmpty then Right(Nil)
+        else
+            entityManagerFactory.readOnlyTransaction(entityManager =>
+                val repo = new ConceptRepository(entityManager)
+                // Stay well under the 2100 parameter limit of SQL Server
+                ids.grouped(1000)
+                    .flatMap(group => repo.findAllByIds(group.map(Long.box).asJava).asScala)
+                    .map(ConceptMetadata.from)
+                    .toSeq
+            )
+
     def findRawByName(name: String, includeChildren: Boolean = false): Either[Throwable, RawConcept] =
         val fn = RawConcept.from(_, includeChildren) // eta expansion and curry
         handleByConceptNameQuery(name, fn)
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.services
+
+import com.github.benmanes.caffeine.cache.{Cache, Caffeine}
+import io.circe.Encoder
+import io.circe.syntax.*
+import org.mbari.oni.etc.circe.CirceCodecs
+
+import java.io.ByteArrayOutputStream
+import java.nio.charset.StandardCharsets
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Holds phylogeny responses already encoded as JSON, so that a repeated request is a byte copy instead of a tree walk
+ * and an encode. Entries are keyed by the version of the phylogeny snapshot they were built from. When the KB changes
+ * the version changes, old entries are never asked for again and they are evicted by the size bound.
+ *
+ * @param maxBytes
+ *   The most memory the encoded responses may use
+ * @param gzip
+ *   Also keep a gzip-compressed copy of each response
+ */
+class PhylogenyResponseCache(maxBytes: Long, gzip: Boolean):
+
+    import PhylogenyResponseCache.*
+
+    private val cache: Cache[Key, Entry] = Caffeine
+        .newBuilder()
+        .maximumWeight(maxBytes)
+        .weigher[Key, Entry]((_, entry) => entry.weight)
+        .build[Key, Entry]()
+
+    /**
+     * @param endpoint
+     *   Identifies the kind of response, e.g. "down"
+     * @param name
+     *   The concept name the response is for
+     * @param version
+     *   The version of the phylogeny snapshot that `find` reads from
+     * @param find
+     *   Looks up the response value. Only called on a cache miss, inside the cache's loader, so it should not do any
+     *   I/O.
+     * @return
+     *   The encoded response, or None if `find` found nothing. Misses are not cached.
+     */
+    def get[A: Encoder](endpoint: String, name: String, version: Long)(find: => Option[A]): Option[Entry] =
+        // Caffeine doesn't store nulls, so a None is simply not cached
+        Option(cache.get(Key(endpoint, name, version), _ => find.map(encode).orNull))
+
+    /**
+     * @param acceptEncoding
+     *   The request's Accept-Encoding header
+     * @return
+     *   The Content-Encoding to respond with, None for plain JSON. Known before the response is looked up, so that an
+     *   ETag can be checked first.
+     */
+    def encoding(acceptEncoding: Option[String]): Option[String] =
+        Option.when(gzip && acceptEncoding.exists(acceptsGzip))("gzip")
+
+    def clear(): Unit = cache.invalidateAll()
+
+    private def encode[A: Encoder](value: A): Entry =
+        val json = CirceCodecs.CustomPrinter.print(value.asJson).getBytes(StandardCharsets.UTF_8)
+        Entry(json, if gzip then Some(compress(json)) else None)
+
+object PhylogenyResponseCache:
+
+    private final case class Key(endpoint: String, name: String, version: Long)
+
+    /**
+     * @param json
+     *   The UTF-8 encoded JSON
+     * @param gzipped
+     *   The same JSON, gzip-compressed
+     */
+    final case class Entry(json: Array[Byte], gzipped: Option[Array[Byte]]):
+
+        private[services] def weight: Int =
+            math.min(Int.MaxValue.toLong, json.length.toLong + gzipped.map(_.length.toLong).getOrElse(0L)).toInt
+
+        /**
+         * @param contentEncoding
+         *   The Content-Encoding returned by [[PhylogenyResponseCache.encoding]]
+         * @return
+         *   The body to send with that encoding. The plain JSON if there is no compressed copy.
+         */
+        def body(contentEncoding: Option[String]): Array[Byte] =
+            if contentEncoding.contains("gzip") then gzipped.getOrElse(json) else json
+
+    /**
+     * An entity tag for every phylogeny response built from one KB version. The version is read from the database,
+     * not counted by this server, so every server hands out the same tag for the same KB, across restarts, and the
+     * tag can be checked before the response is looked up or encoded. A KB change that doesn't touch the tree (e.g.
+     * a media edit) still changes the tag, and clients fetch an unchanged body again.
+     *
+     * @param contentEncoding
+     *   The Content-Encoding the body is sent with. The compressed and plain bodies are different representations, so
+     *   they get different strong ETags.
+     */
+    def tag(kbVersion: Long, contentEncoding: Option[String]): String =
+        contentEncoding.fold(s"kb-$kbVersion")(encoding => s"kb-$kbVersion-$encoding")
+
+    /**
+     * @return
+     *   true if an Accept-Encoding header lists gzip (or *) without a zero quality value
+     */
+    def acceptsGzip(acceptEncoding: String): Boolean =
+        acceptEncoding
+            .split(',')
+            .iterator
+            .map(_.split(';').map(_.trim))
+            .exists(parts =>
+                val coding  = parts.head.toLowerCase
+                val refused = parts.tail.exists(p => p.replace(" ", "").matches("q=0(\\.0*)?"))
+                (coding == "gzip" || coding == "*") && !refused
+            )
+
+    private def compress(bytes: Array[Byte]): Array[Byte] =
+        val out  = new ByteArrayOutputStream(bytes.length / 4 + 64)
+        val gzip = new GZIPOutputStream(out)
+        try gzip.write(bytes)
+        finally gzip.close()
+        out.toByteArray
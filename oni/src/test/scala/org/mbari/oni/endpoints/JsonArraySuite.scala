@@ -0,0 +1,45 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.endpoints
+
+import java.nio.charset.StandardCharsets
+
+class JsonArraySuite extends munit.FunSuite:
+
+    private def read(values: Iterator[String], chunkSize: Int): String =
+        new String(PhylogenyEndpoints.jsonArray(values, chunkSize).readAllBytes(), StandardCharsets.UTF_8)
+
+    test("jsonArray") {
+        assertEquals(read(Iterator.empty, 2), "[]")
+        assertEquals(read(Iterator("1"), 2), "[1]")
+        assertEquals(read(Iterator("1", "2", "3", "4", "5"), 2), "[1,2,3,4,5]")
+        assertEquals(read(Iterator("\"å\"", "\"b\""), 1), "[\"å\",\"b\"]")
+    }
+
+    test("jsonArray consumes values as the stream is read") {
+        var consumed = 0
+        val values   = Iterator.from(0).take(1000).map { i =>
+            consumed += 1
+            i.toString
+        }
+        val stream   = PhylogenyEndpoints.jsonArray(values, 10)
+        assertEquals(consumed, 0)
+        stream.read()
+        assert(consumed <= 10)
+        stream.readAllBytes()
+        assertEquals(consumed, 1000)
+    }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.jdbc
+
+import scala.util.Random
+
+class BkTreeSuite extends munit.FunSuite:
+
+    private val names = IndexedSeq("Nanomia bijuga", "nanomia", "Nanomia", "Bathochordaeus", "Aegina", "aeginidae", "")
+    private val tree  = BkTree(names)
+
+    test("search") {
+        assertEquals(tree.search("nanomia", 0).sorted, IndexedSeq(1 -> 0, 2 -> 0))
+        assertEquals(tree.search("NANOMA", 1).sorted, IndexedSeq(1 -> 1, 2 -> 1))
+        assertEquals(tree.search("aegnia", 2).sorted, IndexedSeq(4 -> 2))
+        assertEquals(tree.search("Bathochordaeus", 3).sorted, IndexedSeq(3 -> 0))
+        assertEquals(tree.search("ab", 2).sorted, IndexedSeq(6 -> 2))
+        assertEquals(tree.search("zzzzzz", 2), IndexedSeq.empty)
+        assertEquals(BkTree(IndexedSeq.empty).search("nanomia", 2), IndexedSeq.empty)
+    }
+
+    test("search matches a scan of every name") {
+        val random   = new Random(42)
+        val alphabet = "abcAB"
+        def name()   = Seq.fill(random.between(0, 8))(alphabet(random.nextInt(alphabet.length))).mkString
+        val names    = IndexedSeq.fill(2000)(name())
+        val tree     = BkTree(names)
+        val distance = new BkTree.Levenshtein
+        for
+            query       <- Seq("abc", "AbCa", "", "bbbbbbb", "cab")
+            maxDistance <- 0 to 3
+        do
+            val expected = names.indices.map(i => i -> distance(query, names(i))).filter(_._2 <= maxDistance)
+            assertEquals(tree.search(query, maxDistance).sorted, expected, s"$query $maxDistance")
+    }
+
+    test("Levenshtein") {
+        val distance = new BkTree.Levenshtein
+        assertEquals(distance("kitten", "sitting"), 3)
+        assertEquals(distance("KITTEN", "kitten"), 0)
+        assertEquals(distance("", "abc"), 3)
+        assertEquals(distance("abc", ""), 3)
+        assertEquals(distance("a much longer name than the buffers", "a"), 34)
+        assertEquals(distance("a", "a much longer name than the buffers"), 34)
+    }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.jdbc
+
+class BloomFilterSuite extends munit.FunSuite:
+
+    private val n      = 50000
+    private val filter = BloomFilter((0 until n).map(i => s"name-$i"), n)
+
+    test("has no false negatives") {
+        assert((0 until n).forall(i => filter.mightContain(s"name-$i")))
+    }
+
+    test("has few false positives") {
+        val falsePositives = (0 until n).count(i => filter.mightContain(s"other-$i"))
+        assert(falsePositives < n / 50, s"Expected about 1% false positives, got $falsePositives of $n")
+    }
+
+    test("plus") {
+        val more = filter.plus(Seq("added-1", "added-2"))
+        assert(more.mightContain("added-1"))
+        assert(more.mightContain("name-1"))
+        assertEquals(more.count, n + 2)
+        assert(more.isFull)
+        assert(!filter.isFull)
+    }
+
+    test("empty") {
+        val empty = BloomFilter(Nil, 0)
+        assert(!empty.mightContain("name-1"))
+        assert(!empty.mightContain(""))
+    }
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.jdbc
+
+import org.mbari.oni.domain.ConceptNameTypes
+
+class CompactTreeSuite extends munit.FunSuite:
+
+    /*
+        1 - root, object
+        |- 2 - child2
+        |  `- 4 - child4 (sub-species, with the primary name last)
+        `- 3 - child3
+     */
+    private val rows = Seq(
+        ConceptRow(1, None, "root", rankLevel = Some("super"), rankName = Some("family")),
+        ConceptRow(1, None, "object", nameType = ConceptNameTypes.ALTERNATE.getType),
+        ConceptRow(2, Some(1), "child2"),
+        ConceptRow(3, Some(1), "child3", rankName = Some("family")),
+        ConceptRow(4, Some(2), "child4c", nameType = ConceptNameTypes.COMMON.getType),
+        ConceptRow(4, Some(2), "child4", rankLevel = Some("sub"), rankName = Some("species"))
+    )
+
+    private val tree = CompactTree.from(rows)
+
+    test("from") {
+        assertEquals(tree.size, 4)
+        assertEquals(tree.nameCount, 6)
+        assertEquals(tree.id(tree.root), 1L)
+        assertEquals(tree.parent(tree.root), CompactTree.NoNode)
+        assertEquals(tree.children(tree.root).map(tree.id), IndexedSeq(2L, 3L))
+        assertEquals(tree.childCount(tree.find("child3")), 0)
+    }
+
+    test("names and ranks") {
+        val child4 = tree.find("child4")
+        assertEquals(tree.primaryName(child4), "child4")
+        assertEquals(tree.alternativeNames(child4), IndexedSeq("child4c"))
+        assertEquals(tree.names(tree.root), IndexedSeq("root", "object"))
+        assertEquals(tree.rank(tree.root), Some("superfamily"))
+        assertEquals(tree.rank(child4), Some("subspecies"))
+        assertEquals(tree.rank(tree.find("child2")), None)
+        assertEquals(tree.rank(tree.find("child3")), Some("family"))
+    }
+
+    test("find") {
+        assertEquals(tree.find("object"), tree.root)
+        assertEquals(tree.find("child4c"), tree.find("child4"))
+        assertEquals(tree.find("missing"), CompactTree.NoNode)
+        assertEquals(CompactTree.Empty.find("root"), CompactTree.NoNode)
+        assertEquals(CompactTree.Empty.root, CompactTree.NoNode)
+    }
+
+    test("mightContainIgnoreCase") {
+        assert(rows.forall(row => tree.mightContainIgnoreCase(row.name)))
+        assert(tree.mightContainIgnoreCase("CHILD4C"))
+        assert(!tree.mightContainIgnoreCase("missing"))
+        assert(!CompactTree.Empty.mightContainIgnoreCase("root"))
+    }
+
+    test("complete") {
+        assertEquals(tree.complete("child", 10), IndexedSeq("child2", "child3", "child4", "child4c"))
+        assertEquals(tree.complete("CHILD4", 10), IndexedSeq("child4", "child4c"))
+        assertEquals(tree.complete("child", 2), IndexedSeq("child2", "child3"))
+        assertEquals(tree.complete("o", 10), IndexedSeq("object"))
+        assertEquals(tree.complete("x", 10), IndexedSeq.empty)
+        assertEquals(CompactTree.Empty.complete("c", 10), IndexedSeq.empty)
+    }
+
+    test("complete ranks exact matches, primary names and shorter names first") {
+        val tree = CompactTree.from(
+            Seq(
+                ConceptRow(1, None, "Nanomia bijuga"),
+                ConceptRow(1, None, "nanomia", nameType = ConceptNameTypes.COMMON.getType),
+                ConceptRow(2, Some(1), "Nanomia"),
+                ConceptRow(3, Some(1), "Nanomiidae"),
+                ConceptRow(4, Some(1), "nanomia-alt", nameType = ConceptNameTypes.ALTERNATE.getType),
+                ConceptRow(4, Some(1), "Nano")
+            ) ++ (5 to 200).map(i => ConceptRow(i, Some(1), s"nanomia-$i"))
+        )
+        assertEquals(tree.complete("NANOMIA", 4), IndexedSeq("Nanomia", "nanomia", "nanomia-5", "nanomia-6"))
+        assertEquals(tree.complete("nano", 2), IndexedSeq("Nano", "Nanomia"))
+        assertEquals(tree.complete("nanomii", 2), IndexedSeq("Nanomiidae"))
+        assertEquals(tree.complete("nanomia-", 3), IndexedSeq("nanomia-5", "nanomia-6", "nanomia-7"))
+        assertEquals(tree.complete("nanomia-", 300).size, 197)
+        assertEquals(tree.complete("nanomia-", 300).last, "nanomia-alt")
+    }
+
+    test("findContaining") {
+        assertEquals(tree.findContaining("HILD4").map(tree.primaryName), IndexedSeq("child4"))
+        assertEquals(tree.findContaining("ild").map(tree.primaryName), IndexedSeq("child2", "child3", "child4"))
+        assertEquals(tree.findContaining("bje").map(tree.primaryName), IndexedSeq("root"))
+        assertEquals(tree.findContaining("missing"), IndexedSeq.empty)
+        assertEquals(CompactTree.Empty.findContaining("root"), IndexedSeq.empty)
+    }
+
+    test("suggest") {
+        assertEquals(tree.suggest("CHILD5", 10, 1), IndexedSeq("child2" -> 1, "child3" -> 1, "child4" -> 1))
+        assertEquals(tree.suggest("chlid4", 10, 2), IndexedSeq("child4" -> 2))
+        assertEquals(tree.suggest("objet", 10, 1), IndexedSeq("object" -> 1))
+        assertEquals(tree.suggest("Root", 10, 0), IndexedSeq("root" -> 0))
+        assertEquals(tree.suggest("missing", 10, 2), IndexedSeq.empty)
+        assertEquals(CompactTree.Empty.suggest("root", 10, 2), IndexedSeq.empty)
+    }
+
+    test("contains") {
+        val child2 = tree.find("child2")
+        val child4 = tree.find("child4")
+        assert(tree.contains(tree.root, child4))
+        assert(tree.contains(child2, child4))
+        assert(tree.contains(child4, child4))
+        assert(!tree.contains(child4, child2))
+        assert(!tree.contains(tree.find("child3"), child4))
+    }
+
+    test("contains is false for nodes caught in a parent cycle") {
+        // 5 and 6 are each other's parent, so neither is reachable from a root
+        val cyclic = CompactTree.from(rows ++ Seq(ConceptRow(5, Some(6L), "cycle5"), ConceptRow(6, Some(5L), "cycle6")))
+        val cycle5 = cyclic.find("cycle5")
+        val cycle6 = cyclic.find("cycle6")
+        assert(!cyclic.contains(cycle5, cycle6))
+        assert(!cyclic.contains(cycle5, cycle5))
+        assert(!cyclic.contains(cyclic.root, cycle5))
+        assert(!cyclic.contains(cycle5, cyclic.root))
+        assert(cyclic.contains(cyclic.root, cyclic.find("child4")))
+    }
+
+    /** Everything about each node that doesn't depend on the order of the nodes */
+    private def describe(t: CompactTree) =
+        (0 until t.size).map { node =>
+            val parent = Option.when(t.parent(node) != CompactTree.NoNode)(t.id(t.parent(node)))
+            (t.id(node), parent, t.names(node), t.rank(node))
+        }.toSet
+
+    test("patch") {
+        val changed  = Seq(
+            // child3 renamed, with the primary name last
+            ConceptRow(3, Some(1), "aardvark", nameType = ConceptNameTypes.ALTERNATE.getType),
+            ConceptRow(3, Some(1), "child3b", rankName = Some("family")),
+            // child4 moved from child2 to child3
+            ConceptRow(4, Some(3), "child4c", nameType = ConceptNameTypes.COMMON.getType),
+            ConceptRow(4, Some(3), "child4", rankLevel = Some("sub"), rankName = Some("species")),
+            // a new concept with a new rank
+            ConceptRow(5, Some(4), "child5", rankName = Some("genus"))
+        )
+        val patched  = tree.patch(changed, Set(2L))
+        val expected = CompactTree.from(rows.filter(row => row.id == 1L) ++ changed)
+
+        assertEquals(describe(patched), describe(expected))
+        assertEquals(patched.nameCount, expected.nameCount)
+        assertEquals(patched.find("child2"), CompactTree.NoNode)
+        assertEquals(patched.find("child3"), CompactTree.NoNode)
+        assertEquals(patched.primaryName(patched.find("aardvark")), "child3b")
+        assertEquals(patched.path(patched.find("child5"), patched.root).map(patched.id), IndexedSeq(5L, 4L, 3L, 1L))
+        assertEquals(patched.withRank(patched.root, "genus").map(patched.id), IndexedSeq(5L))
+        assertEquals(patched.complete("CHILD", 10), expected.complete("CHILD", 10))
+        assertEquals(patched.complete("a", 10), IndexedSeq("aardvark"))
+        assert(patched.mightContainIgnoreCase("Child5"))
+
+        // The original is untouched
+        assertEquals(describe(tree), describe(CompactTree.from(rows)))
+    }
+
+    test("patch keeps a removed concept that is still a parent") {
+        val patched = tree.patch(Nil, Set(2L))
+        assertEquals(describe(patched), describe(CompactTree.from(rows.filter(_.id != 2L))))
+        val child2  = patched.parent(patched.find("child4"))
+        assertEquals(patched.id(child2), 2L)
+        assertEquals(patched.names(child2), IndexedSeq.empty)
+        assert(!patched.contains(patched.root, patched.find("child4")))
+    }
+
+    test("depth") {
+        assertEquals(tree.depth(tree.root), 0)
+        assertEquals(tree.depth(tree.find("child2")), 1)
+        assertEquals(tree.depth(tree.find("child4")), 2)
+    }
+
+    test("lowestCommonAncestor") {
+        val child2 = tree.find("child2")
+        val child3 = tree.find("child3")
+        val child4 = tree.find("child4")
+        assertEquals(tree.lowestCommonAncestor(child4, child3), tree.root)
+        assertEquals(tree.lowestCommonAncestor(child3, child4), tree.root)
+        assertEquals(tree.lowestCommonAncestor(child4, child2), child2)
+        assertEquals(tree.lowestCommonAncestor(child4, child4), child4)
+
+        // Two separate trees
+        val forest = CompactTree.from(rows :+ ConceptRow(5, None, "other"))
+        assertEquals(forest.lowestCommonAncestor(forest.find("child4"), forest.find("other")), CompactTree.NoNode)
+    }
+
+    test("lowestCommonAncestor in a deep tree") {
+        // Two chains of 1000 concepts below a shared root, with a side branch halfway down the first
+        val chain = (1 to 1000).map(i => ConceptRow(i, Some(i - 1L), s"a$i"))
+        val other = (1001 to 2000).map(i => ConceptRow(i, Some(if i == 1001 then 0L else i - 1L), s"b$i"))
+        val side  = ConceptRow(2001, Some(500L), "side")
+        val deep  = CompactTree.from(ConceptRow(0, None, "root") +: (chain ++ other :+ side))
+        assertEquals(deep.depth(deep.find("a1000")), 1000)
+        assertEquals(deep.lowestCommonAncestor(deep.find("a1000"), deep.find("b2000")), deep.root)
+        assertEquals(deep.lowestCommonAncestor(deep.find("a1000"), deep.find("side")), deep.find("a500"))
+        assertEquals(deep.lowestCommonAncestor(deep.find("side"), deep.find("a501")), deep.find("a500"))
+        assertEquals(deep.lowestCommonAncestor(deep.find("a10"), deep.find("a999")), deep.find("a10"))
+    }
+
+    test("path") {
+        def path(from: String, to: String) = tree.path(tree.find(from), tree.find(to)).map(tree.primaryName)
+        assertEquals(path("child4", "child3"), IndexedSeq("child4", "child2", "root", "child3"))
+        assertEquals(path("root", "child4"), IndexedSeq("root", "child2", "child4"))
+        assertEquals(path("child3", "child3"), IndexedSeq("child3"))
+    }
+
+    test("withRank") {
+        def withRank(ancestor: String, rank: String) = tree.withRank(tree.find(ancestor), rank).map(tree.primaryName)
+        assertEquals(withRank("root", "family"), IndexedSeq("child3"))
+        assertEquals(withRank("root", "SuperFamily"), IndexedSeq("root"))
+        assertEquals(withRank("root", "subspecies"), IndexedSeq("child4"))
+        assertEquals(withRank("child2", "subspecies"), IndexedSeq("child4"))
+        assertEquals(withRank("child2", "family"), IndexedSeq.empty)
+        assertEquals(withRank("root", "kingdom"), IndexedSeq.empty)
+    }
+
+    test("withRank in a wide tree") {
+        // 30 genera of 30 species each, named so that name order differs from tree order
+        val genera  = (1 to 30).map(g => ConceptRow(g, Some(0L), s"genus-${31 - g}", rankName = Some("genus")))
+        val species = for
+            g <- 1 to 30
+            s <- 1 to 30
+        yield ConceptRow(g * 100 + s, Some(g.toLong), f"species-${31 - s}%02d-$g%02d", rankName = Some("species"))
+        val wide    = CompactTree.from(ConceptRow(0, None, "root") +: (genera ++ species))
+
+        // A small run of the index, which is sorted
+        val oneGenus = wide.withRank(wide.find("genus-1"), "species").map(wide.primaryName)
+        assertEquals(oneGenus, (1 to 30).map(s => f"species-$s%02d-30"))
+
+        // All of them, which are picked out of the name-ordered index
+        val all = wide.withRank(wide.root, "species").map(wide.primaryName)
+        assertEquals(all.size, 900)
+        assertEquals(all, all.sorted)
+        assertEquals(wide.withRank(wide.root, "genus").map(wide.primaryName), (1 to 30).map(g => s"genus-$g").sorted)
+    }
+
+    test("estimatedSizeInBytes per 100k concepts") {
+        // 100k concepts, 10 children per parent, a quarter of them with an alternate name
+        val n       = 100000
+        val rows    = (0 until n).flatMap { i =>
+            val parentId = if i == 0 then None else Some(((i - 1) / 10).toLong)
+            val primary  = ConceptRow(i, parentId, s"concept-$i", rankName = Some("species"))
+            if i % 4 == 0 then
+                Seq(primary, ConceptRow(i, parentId, s"alternate-$i", nameType = ConceptNameTypes.COMMON.getType))
+            else Seq(primary)
+        }
+        val tree    = CompactTree.from(rows)
+        val bytes   = tree.estimatedSizeInBytes
+        val perNode = bytes / n
+        assertEquals(tree.size, n)
+        assert(
+            perNode < 150,
+            s"Expected less than 150 bytes per concept, got $perNode (~${bytes / 1024} KiB for ${tree.nameCount} names)"
+        )
+    }
@@ -106,5 +106,30 @@ class MutableConceptSuite extends munit.FunSuite {
         assertEquals(concept.descendants.size, 10)
         assertEquals(concept.descendantNames.size, 15)
     }
+
+    test("toTree with a large number of rows") {
+        // 100k concepts, each with a primary and an alternate name, arranged with a branching factor of 10
+        val n     = 100000
+        val large = (1 to n).flatMap { i =>
+            val parentId = if i == 1 then None else Some(math.max(1L, i / 10L))
+            Seq(
+                ConceptRow(i, parentId, s"concept$i"),
+                ConceptRow(i, parentId, s"alt$i", nameType = ConceptNameTypes.ALTERNATE.getType)
+            )
+        }
+        assertEquals(large.size, 200000)
+
+        val (largeRoot, largeNodes) = MutableConcept.toTree(large)
+
+        assertEquals(largeNodes.size, n)
+        assertEquals(largeRoot.flatMap(_.id), Some(1L))
+        assertEquals(largeNodes.map(_.children.size).sum, n - 1)
+        assert(largeNodes.forall(_.names.size == 2))
+        for node <- largeNodes do
+            val id = node.id.get
+            assertEquals(node.primaryName, Some(s"concept$id"))
+            assertEquals(node.parent.flatMap(_.id), Option.when(id > 1)(math.max(1L, id / 10L)))
+            assert(node.children.forall(_.parent.exists(_ eq node)))
+    }
   
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.jdbc
+
+import org.mbari.oni.domain.ConceptNameTypes
+
+import java.nio.file.{Files, Path}
+import java.time.Instant
+
+class PhylogenySnapshotFileSuite extends munit.FunSuite:
+
+    private val source = "jdbc:postgresql://localhost/oni"
+
+    private val snapshot = PhylogenySnapshot.from(
+        Seq(
+            ConceptRow(1, None, "root", rankLevel = Some("super"), rankName = Some("family")),
+            ConceptRow(1, None, "object", nameType = ConceptNameTypes.ALTERNATE.getType),
+            ConceptRow(2, Some(1), "child2"),
+            ConceptRow(3, Some(1), "child3", rankName = Some("family")),
+            ConceptRow(4, Some(2), "Ånë ĉhîld", nameType = ConceptNameTypes.COMMON.getType),
+            ConceptRow(4, Some(2), "child4", rankLevel = Some("sub"), rankName = Some("species"))
+        ),
+        Instant.parse("2024-06-01T12:34:56.123456789Z")
+    ).copy(kbVersion = 42L)
+
+    private val dir = FunFixture[Path](
+        setup = _ => Files.createTempDirectory("oni-snapshot"),
+        teardown = dir => Files.walk(dir).sorted(java.util.Comparator.reverseOrder()).forEach(Files.delete)
+    )
+
+    dir.test("write and read") { dir =>
+        val path = dir.resolve("nested/phylogeny.snapshot")
+        assert(PhylogenySnapshotFile.write(snapshot, source, path).isRight)
+        val restored = PhylogenySnapshotFile.read(path, source).toOption.get
+        assertEquals(restored.lastUpdate, snapshot.lastUpdate)
+        assertEquals(restored.kbVersion, 42L)
+        assertEquals(restored.rowCount, snapshot.rowCount)
+        assertEquals(restored.tree.size, snapshot.tree.size)
+        for node <- 0 until snapshot.tree.size do
+            assertEquals(restored.tree.id(node), snapshot.tree.id(node))
+            assertEquals(restored.tree.parent(node), snapshot.tree.parent(node))
+            assertEquals(restored.tree.names(node), snapshot.tree.names(node))
+            assertEquals(restored.tree.rank(node), snapshot.tree.rank(node))
+        val child4 = restored.findNode("Ånë ĉhîld").get
+        assertEquals(restored.tree.primaryName(child4), "child4")
+        assertEquals(restored.tree.rank(child4), Some("subspecies"))
+        assertEquals(restored.isDescendant("child4", "object"), Some(true))
+        assertEquals(restored.isDescendant("child3", "child2"), Some(false))
+    }
+
+    dir.test("write and read an empty snapshot") { dir =>
+        val path = dir.resolve("phylogeny.snapshot")
+        assert(PhylogenySnapshotFile.write(PhylogenySnapshot.Empty, source, path).isRight)
+        val restored = PhylogenySnapshotFile.read(path, source).toOption.get
+        assert(restored.isEmpty)
+        assertEquals(restored.lastUpdate, Instant.EPOCH)
+    }
+
+    dir.test("reject a file written for another database") { dir =>
+        val path = dir.resolve("phylogeny.snapshot")
+        assert(PhylogenySnapshotFile.write(snapshot, source, path).isRight)
+        assert(PhylogenySnapshotFile.read(path, "jdbc:sqlserver://localhost;databaseName=oni").isLeft)
+    }
+
+    dir.test("reject a corrupt file") { dir =>
+        val path  = dir.resolve("phylogeny.snapshot")
+        assert(PhylogenySnapshotFile.write(snapshot, source, path).isRight)
+        val bytes = Files.readAllBytes(path)
+        bytes(bytes.length / 2) = (bytes(bytes.length / 2) ^ 0xff).toByte
+        Files.write(path, bytes)
+        assert(PhylogenySnapshotFile.read(path, source).isLeft)
+    }
+
+    dir.test("reject a file that isn't a snapshot") { dir =>
+        val path = dir.resolve("phylogeny.snapshot")
+        Files.writeString(path, "not a snapshot")
+        assert(PhylogenySnapshotFile.read(path, source).isLeft)
+        assert(PhylogenySnapshotFile.read(dir.resolve("missing"), source).isLeft)
+    }
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mbari.oni.jdbc
+
+import org.mbari.oni.domain.{Concept, ConceptNameTypes, NameValidation}
+
+import java.time.Instant
+
+class PhylogenySnapshotSuite extends munit.FunSuite:
+
+    private val t0 = Instant.parse("2024-01-01T00:00:00Z")
+    private val t1 = Instant.parse("2024-06-01T00:00:00Z")
+
+    private val rows = Seq(
+        ConceptRow(1, None, "root", conceptTimestamp = t0, conceptNameTimestamp = t0),
+        ConceptRow(2, Some(1), "child", conceptTimestamp = t0, conceptNameTimestamp = t1),
+        ConceptRow(2, Some(1), "kid", nameType = ConceptNameTypes.ALTERNATE.getType)
+    )
+
+    test("from") {
+        val snapshot = PhylogenySnapshot.from(rows)
+        assert(!snapshot.isEmpty)
+        assertEquals(snapshot.tree.size, 2)
+        assertEquals(snapshot.root.map(snapshot.tree.id), Some(1L))
+        assertEquals(snapshot.lastUpdate, t1)
+        assertEquals(snapshot.findNode("kid").map(snapshot.tree.id), Some(2L))
+        assertEquals(snapshot.findNode("child").map(snapshot.tree.id), Some(2L))
+        assert(snapshot.findNode("missing").isEmpty)
+    }
+
+    test("validate") {
+        val snapshot = PhylogenySnapshot.from(rows)
+        assertEquals(snapshot.validate("kid"), NameValidation("kid", true, Some("child")))
+        assertEquals(snapshot.validate("child"), NameValidation("child", true, Some("child")))
+        assertEquals(snapshot.validate("missing"), NameValidation("missing", false))
+    }
+
+    test("from with no rows keeps the previous lastUpdate") {
+        val snapshot = PhylogenySnapshot.from(Nil, t1)
+        assert(snapshot.isEmpty)
+        assertEquals(snapshot.lastUpdate, t1)
+        assert(PhylogenySnapshot.Empty.isEmpty)
+    }
+
+    test("patch") {
+        val t2       = Instant.parse("2024-07-01T00:00:00Z")
+        val original = PhylogenySnapshot.from(
+            rows ++ Seq(
+                ConceptRow(3, Some(1), "other"),
+                ConceptRow(4, Some(3), "doomed")
+            )
+        )
+        val changed  = Seq(
+            // rename child and move it under other
+            ConceptRow(2, Some(3), "renamed", conceptTimestamp = t2),
+            ConceptRow(2, Some(3), "kid", nameType = ConceptNameTypes.ALTERNATE.getType),
+            // new rank for other
+            ConceptRow(3, Some(1), "other", rankName = Some("genus")),
+            // a brand new concept
+            ConceptRow(5, Some(1), "added")
+        )
+        val patched  = original.patch(changed, Set(4L))
+
+        val tree     = patched.tree
+        assertEquals(tree.size, 4)
+        assertEquals(patched.rowCount, 5)
+        assertEquals(patched.lastUpdate, t2)
+        assert(patched.findNode("child").isEmpty)
+        assert(patched.findNode("doomed").isEmpty)
+        assertEquals(patched.findNode("renamed").map(n => tree.id(tree.parent(n))), Some(3L))
+        assertEquals(patched.findNode("kid").map(tree.primaryName), Some("renamed"))
+        assertEquals(patched.findNode("other").flatMap(tree.rank), Some("genus"))
+        assertEquals(patched.findNode("added").map(n => tree.id(tree.parent(n))), Some(1L))
+        assertEquals(patched.root.map(tree.childCount), Some(2))
+        // Unchanged concepts keep their names and ranks
+        assertEquals(patched.findNode("root").map(tree.names), Some(IndexedSeq("root")))
+
+        // The original snapshot is untouched
+        assertEquals(original.tree.size, 4)
+        assertEquals(original.findNode("child").map(n => original.tree.id(original.tree.parent(n))), Some(1L))
+        assert(original.findNode("doomed").isDefined)
+    }
+
+    test("isDescendant") {
+        val snapshot = PhylogenySnapshot.from(
+            rows ++ Seq(
+                ConceptRow(3, Some(1), "other"),
+                ConceptRow(4, Some(2), "grandchild"),
+                ConceptRow(5, Some(4), "greatgrandchild")
+            )
+        )
+        assertEquals(snapshot.isDescendant("greatgrandchild", "root"), Some(true))
+        assertEquals(snapshot.isDescendant("greatgrandchild", "child"), Some(true))
+        assertEquals(snapshot.isDescendant("greatgrandchild", "kid"), Some(true))
+        assertEquals(snapshot.isDescendant("grandchild", "grandchild"), Some(true))
+        assertEquals(snapshot.isDescendant("child", "grandchild"), Some(false))
+        assertEquals(snapshot.isDescendant("grandchild", "other"), Some(false))
+        assertEquals(snapshot.isDescendant("root", "other"), Some(false))
+        assertEquals(snapshot.isDescendant("missing", "root"), None)
+        assertEquals(snapshot.isDescendant("root", "missing"), None)
+    }
+
+    test("subtree, branch and flatSubtree are built once and shared") {
+        val snapshot = PhylogenySnapshot.from(rows ++ Seq(ConceptRow(3, Some(2), "grandchild")))
+        val root     = snapshot.root.get
+        val child    = snapshot.findNode("child").get
+
+        val (mutableRoot, _) = MutableConcept.toTree(rows ++ Seq(ConceptRow(3, Some(2), "grandchild")))
+        val mutableChild     = mutableRoot.get.children.head
+
+        val tree = snapshot.subtree(root)
+        assertEquals(tree, mutableRoot.get.toImmutable)
+        assert(tree eq snapshot.subtree(root))
+        assert(tree.children.head eq snapshot.subtree(child))
+
+        val branch = snapshot.branch(child)
+        assertEquals(branch, mutableChild.copyUp().root().toImmutable)
+        assert(branch eq snapshot.branch(child))
+
+        val taxa = snapshot.flatSubtree(root)
+        assertEquals(taxa.map(_.name), Seq("child", "grandchild", "root"))
+        assert(taxa.forall(_.children.isEmpty))
+        assert(taxa eq snapshot.flatSubtree(root))
+
+        // A new KB version with the same tree, e.g. after a media edit, keeps the views
+        val copied = snapshot.copy(version = 2, kbVersion = 7)
+        assert(copied.subtree(root) eq tree)
+        assert(copied.branch(child) eq branch)
+        assert(copied.flatSubtree(root) eq taxa)
+    }
+
+    test("subtree and flatSubtree with limits") {
+        val snapshot = PhylogenySnapshot.from(
+            Seq(
+                ConceptRow(1, None, "root"),
+                ConceptRow(2, Some(1), "a"),
+                ConceptRow(3, Some(1), "b"),
+                ConceptRow(4, Some(2), "c"),
+                ConceptRow(5, Some(2), "d"),
+                ConceptRow(6, Some(3), "e")
+            )
+        )
+        val root     = snapshot.root.get
+
+        def names(concept: Concept): Seq[String] = concept.flatten.map(_.name).sorted
+
+        assert(snapshot.subtree(root, None, None) eq snapshot.subtree(root))
+        assertEquals(names(snapshot.subtree(root, Some(0), None)), Seq("root"))
+        assertEquals(names(snapshot.subtree(root, Some(1), None)), Seq("a", "b", "root"))
+        assertEquals(names(snapshot.subtree(root, Some(2), None)), Seq("a", "b", "c", "d", "e", "root"))
+        assertEquals(names(snapshot.subtree(root, None, Some(1))), Seq("root"))
+        // Children are all or none, so b's child doesn't fit after a's
+        assertEquals(names(snapshot.subtree(root, None, Some(4))), Seq("a", "b", "root"))
+        assertEquals(names(snapshot.subtree(root, None, Some(5))), Seq("a", "b", "c", "d", "root"))
+        assertEquals(names(snapshot.subtree(root, Some(1), Some(5))), Seq("a", "b", "root"))
+
+        assertEquals(snapshot.flatSubtree(root, Some(1), None).map(_.name), Seq("a", "b", "root"))
+        assertEquals(snapshot.flatSubtree(root, None, Some(5)).map(_.name), Seq("a", "b", "c", "d", "root"))
+        assert(snapshot.flatSubtree(root, Some(1), None).forall(_.children.isEmpty))
+    }
+
+    test("flatSubtree with a rank") {
+        val snapshot = PhylogenySnapshot.from(
+            rows ++ Seq(
+                ConceptRow(3, Some(1), "other", rankName = Some("genus")),
+                ConceptRow(4, Some(2), "b-species", rankName = Some("species")),
+                ConceptRow(5, Some(4), "a-species", rankName = Some("species")),
+                ConceptRow(6, Some(3), "c-species", rankName = Some("species"))
+            )
+        )
+        val root     = snapshot.root.get
+        assertEquals(
+            snapshot.flatSubtree(root, "species", None, None).map(_.name),
+            Seq("a-species", "b-species", "c-species")
+        )
+        assertEquals(snapshot.flatSubtree(root, "species", Some(2), None).map(_.name), Seq("b-species", "c-species"))
+        assertEquals(snapshot.flatSubtree(root, "species", None, Some(1)).map(_.name), Seq("a-species"))
+        assertEquals(snapshot.flatSubtree(root, "genus", None, None).map(_.name), Seq("other"))
+        assertEquals(snapshot.flatSubtree(snapshot.findNode("child").get, "genus", None, None), Nil)
+        assert(snapshot.flatSubtree(root, "species", None, None).forall(_.children.isEmpty))
+    }
+
+    test("siblings") {
+        val snapshot = PhylogenySnapshot.from(rows ++ Seq(ConceptRow(3, Some(1), "other", rankName = Some("genus"))))
+        val siblings = snapshot.findNode("child").map(snapshot.siblings).getOrElse(Nil)
+        assertEquals(siblings.map(_.name).sorted, Seq("child", "other"))
+        assertEquals(siblings.find(_.name == "child").map(_.alternativeNames), Some(Seq("kid")))
+        assertEquals(siblings.find(_.name == "other").flatMap(_.rank), Some("genus"))
+        assertEquals(snapshot.root.map(snapshot.siblings), Some(Nil))
+    }
+
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.jdbc
+
+import java.time.Duration
+
+class RetryDelaySuite extends munit.FunSuite:
+
+    private val base = Duration.ofSeconds(10)
+
+    test("retryDelay doubles with each failure") {
+        assertEquals(FastPhylogenyService.retryDelay(base, 1), base)
+        assertEquals(FastPhylogenyService.retryDelay(base, 2), Duration.ofSeconds(20))
+        assertEquals(FastPhylogenyService.retryDelay(base, 4), Duration.ofSeconds(80))
+    }
+
+    test("retryDelay is capped") {
+        assertEquals(FastPhylogenyService.retryDelay(base, 6), FastPhylogenyService.MaxRetryDelay)
+        assertEquals(FastPhylogenyService.retryDelay(base, Int.MaxValue), FastPhylogenyService.MaxRetryDelay)
+        // A refresh interval longer than the cap is never shortened
+        val hour = Duration.ofHours(1)
+        assertEquals(FastPhylogenyService.retryDelay(hour, 3), hour)
+    }
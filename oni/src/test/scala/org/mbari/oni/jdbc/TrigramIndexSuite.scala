@@ -0,0 +1,48 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.jdbc
+
+import scala.util.Random
+
+class TrigramIndexSuite extends munit.FunSuite:
+
+    private val names = IndexedSeq("Nanomia bijuga", "nanomia", "Bathochordaeus", "Aegina", "aeginidae", "Œuf", "")
+    private val index = TrigramIndex(names)
+
+    test("find") {
+        assertEquals(index.find("nomi"), IndexedSeq(0, 1))
+        assertEquals(index.find("AEGIN"), IndexedSeq(3, 4))
+        assertEquals(index.find("ginid"), IndexedSeq(4))
+        assertEquals(index.find("œUF"), IndexedSeq(5))
+        assertEquals(index.find("nanomiab"), IndexedSeq.empty)
+        assertEquals(index.find("zzz"), IndexedSeq.empty)
+    }
+
+    test("find a short substring") {
+        assertEquals(index.find("ae"), IndexedSeq(2, 3, 4))
+        assertEquals(index.find(""), names.indices)
+    }
+
+    test("find matches a scan of every name") {
+        val random   = new Random(42)
+        val alphabet = "abcdeABCDE "
+        def name()   = Seq.fill(random.between(0, 12))(alphabet(random.nextInt(alphabet.length))).mkString
+        val names    = IndexedSeq.fill(2000)(name())
+        val index    = TrigramIndex(names)
+        for substring <- Seq("abc", "AbCd", "e a", "dddd", "cab", "a", "bad") do
+            val expected = names.indices.filter(i => names(i).toLowerCase.contains(substring.toLowerCase))
+            assertEquals(index.find(substring), expected, substring)
+    }
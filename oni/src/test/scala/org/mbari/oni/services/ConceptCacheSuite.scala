@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.services
+
+import org.mbari.oni.ConceptNameNotFound
+import org.mbari.oni.domain.ConceptMetadata
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CountDownLatch, Executors, TimeUnit}
+
+class ConceptCacheSuite extends munit.FunSuite:
+
+    /** Counts database loads. Each one waits for `release`, so that concurrent callers pile up behind it. */
+    private class Fixture:
+        val conceptLoads = new AtomicInteger(0)
+        val nameLoads    = new AtomicInteger(0)
+        val release      = new CountDownLatch(1)
+
+        private val conceptService = new ConceptService(null):
+            override def findByName(name: String): Either[Throwable, ConceptMetadata] =
+                conceptLoads.incrementAndGet()
+                release.await(10, TimeUnit.SECONDS)
+                if name == "missing" then Left(ConceptNameNotFound(name))
+                else Right(ConceptMetadata(name, id = Some(1L)))
+
+        private val conceptNameService = new ConceptNameService(null):
+            override def findAllNames(limit: Int, offset: Int): Either[Throwable, Seq[String]] =
+                nameLoads.incrementAndGet()
+                release.await(10, TimeUnit.SECONDS)
+                Right(Seq("a", "b", "c"))
+
+        val cache = ConceptCache(conceptService, conceptNameService)
+
+    /** Runs `f` on many threads at once, then lets the loads finish */
+    private def concurrently[T](fixture: Fixture)(f: => T): Seq[T] =
+        val executor = Executors.newFixedThreadPool(16)
+        try
+            val futures = (1 to 16).map(_ => executor.submit(() => f))
+            Thread.sleep(200)
+            fixture.release.countDown()
+            futures.map(_.get(10, TimeUnit.SECONDS))
+        finally executor.shutdown()
+
+    test("concurrent misses for a name share one load") {
+        val fixture = Fixture()
+        val results = concurrently(fixture)(fixture.cache.findTaggedByName("Nanomia"))
+        assertEquals(fixture.conceptLoads.get(), 1)
+        assert(results.forall(_.map(_.metadata.name) == Right("Nanomia")))
+        assert(results.forall(_.toOption.get eq results.head.toOption.get))
+    }
+
+    test("concurrent misses for all names share one load") {
+        val fixture = Fixture()
+        val results = concurrently(fixture)(fixture.cache.findAllNames(2, 1))
+        assertEquals(fixture.nameLoads.get(), 1)
+        assert(results.forall(_ == Right(Seq("b", "c"))))
+    }
+
+    test("an unknown name is not cached but is remembered as a miss") {
+        val fixture = Fixture()
+        fixture.release.countDown()
+        assertEquals(fixture.cache.findByName("missing"), Left(ConceptNameNotFound("missing")))
+        assertEquals(fixture.cache.findByName("missing"), Left(ConceptNameNotFound("missing")))
+        assertEquals(fixture.conceptLoads.get(), 1)
+    }
+
+    test("invalidating reloads a name") {
+        val fixture = Fixture()
+        fixture.release.countDown()
+        val first   = fixture.cache.findTaggedByName("Nanomia")
+        assertEquals(fixture.cache.invalidating(Seq("Nanomia"), namesChanged = false)("changed"), "changed")
+        val second  = fixture.cache.findTaggedByName("Nanomia")
+        assertEquals(fixture.conceptLoads.get(), 2)
+        assertEquals(first, second)
+    }
+
+    test("invalidating evicts a concept cached under another name") {
+        val fixture = Fixture()
+        fixture.release.countDown()
+        // The fixture gives every name the same concept id, like an alternate name would have
+        fixture.cache.findByName("Nanomia")
+        fixture.cache.findByName("Nanomia bijuga")
+        fixture.cache.invalidating(Seq("Nanomia"), namesChanged = true)(())
+        fixture.cache.findByName("Nanomia bijuga")
+        assertEquals(fixture.conceptLoads.get(), 3)
+    }
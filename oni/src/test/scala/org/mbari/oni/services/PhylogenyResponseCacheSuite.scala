@@ -0,0 +1,84 @@
+/*
+ * Copyright 2024 Monterey Bay Aquarium Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mbari.oni.services
+
+import org.mbari.oni.domain.SerdeConcept
+import org.mbari.oni.etc.circe.CirceCodecs.given
+
+import java.io.ByteArrayInputStream
+import java.nio.charset.StandardCharsets
+import java.util.zip.GZIPInputStream
+
+class PhylogenyResponseCacheSuite extends munit.FunSuite:
+
+    private val concept = SerdeConcept("root", children = Some(Set(SerdeConcept("child"))))
+
+    test("get encodes once per version") {
+        val cache = PhylogenyResponseCache(1024 * 1024, false)
+        var calls = 0
+        def find  =
+            calls += 1
+            Some(concept)
+
+        val first  = cache.get("down", "root", 1)(find)
+        val second = cache.get("down", "root", 1)(find)
+        assertEquals(calls, 1)
+        assert(first.get eq second.get)
+        assertEquals(new String(first.get.json, StandardCharsets.UTF_8), """{"name":"root","children":[{"name":"child"}]}""")
+        assert(first.get.gzipped.isEmpty)
+
+        cache.get("down", "root", 2)(find)
+        cache.get("up", "root", 2)(find)
+        assertEquals(calls, 3)
+    }
+
+    test("get does not cache misses") {
+        val cache = PhylogenyResponseCache(1024 * 1024, false)
+        assert(cache.get("down", "missing", 1)(Option.empty[SerdeConcept]).isEmpty)
+        assert(cache.get("down", "missing", 1)(Some(concept)).isDefined)
+    }
+
+    test("encoding and body use the gzipped copy when it is accepted") {
+        val cache = PhylogenyResponseCache(1024 * 1024, true)
+        val entry = cache.get("down", "root", 1)(Some(concept)).get
+
+        val encoding = cache.encoding(Some("gzip, deflate"))
+        assertEquals(encoding, Some("gzip"))
+        val unzipped = new GZIPInputStream(new ByteArrayInputStream(entry.body(encoding))).readAllBytes()
+        assertEquals(unzipped.toSeq, entry.json.toSeq)
+
+        assertEquals(cache.encoding(None), None)
+        assertEquals(cache.encoding(Some("br")), None)
+        assert(entry.body(None) eq entry.json)
+
+        // Without gzip the plain JSON is always sent
+        assertEquals(PhylogenyResponseCache(1024 * 1024, false).encoding(Some("gzip")), None)
+    }
+
+    test("tag depends only on the KB version and the encoding sent") {
+        assertEquals(PhylogenyResponseCache.tag(7, None), PhylogenyResponseCache.tag(7, None))
+        assertNotEquals(PhylogenyResponseCache.tag(7, None), PhylogenyResponseCache.tag(8, None))
+        assertNotEquals(PhylogenyResponseCache.tag(7, None), PhylogenyResponseCache.tag(7, Some("gzip")))
+    }
+
+    test("acceptsGzip") {
+        assert(PhylogenyResponseCache.acceptsGzip("gzip"))
+        assert(PhylogenyResponseCache.acceptsGzip("deflate, GZIP;q=0.5"))
+        assert(PhylogenyResponseCache.acceptsGzip("*"))
+        assert(!PhylogenyResponseCache.acceptsGzip("gzip;q=0"))
+        assert(!PhylogenyResponseCache.acceptsGzip("gzip; q=0.0, br"))
+        assert(!PhylogenyResponseCache.acceptsGzip("identity"))
+    }